@@ -62,6 +62,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 	public static final String PARAM_AUTHTOKEN_TYPE = "authtokenType";
 	public static final String PARAM_SEARCHFILTER = "searchFilter";
 	public static final String PARAM_BASEDN = "baseDN";
+	public static final String PARAM_PAGESIZE = "pageSize";
+	public static final String PARAM_SHARDS = "shards";
 	public static final String PARAM_MAPPING = "map_";
 
 	private static final String TAG = "LDAPAuthActivity";
@@ -94,6 +96,10 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 	private Spinner mEncryptionSpinner;
 	private String mSearchFilter;
 	private EditText mSearchFilterEdit;
+	private int mPageSize = LDAPServerInstance.DEFAULT_PAGE_SIZE;
+	private EditText mPageSizeEdit;
+	private int mShards = 1;
+	private EditText mShardsEdit;
 	private String mBaseDN;
 	private AutoCompleteTextView mBaseDNSpinner;
 	private int mPort;
@@ -123,6 +129,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 	private EditText mCountryEdit;
 	private String mImage;
 	private EditText mImageEdit;
+	private String mThumbnail;
+	private EditText mThumbnailEdit;
 	private Dialog dialog;
 
 	@Override
@@ -163,6 +171,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		mHostEdit = (EditText) findViewById(R.id.host_edit);
 		mPortEdit = (EditText) findViewById(R.id.port_edit);
 		mSearchFilterEdit = (EditText) findViewById(R.id.searchfilter_edit);
+		mPageSizeEdit = (EditText) findViewById(R.id.pagesize_edit);
+		mShardsEdit = (EditText) findViewById(R.id.shards_edit);
 		mBaseDNSpinner = (AutoCompleteTextView) findViewById(R.id.basedn_spinner);
 
 		// Set values from the intent
@@ -171,6 +181,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		mHostEdit.setText(mHost);
 		mPortEdit.setText(Integer.toString(mPort));
 		mSearchFilterEdit.setText(mSearchFilter);
+		mPageSizeEdit.setText(Integer.toString(mPageSize));
+		mShardsEdit.setText(Integer.toString(mShards));
 
 		// Set values for LDAP mapping
 		mFirstNameEdit = (EditText) findViewById(R.id.firstname_edit);
@@ -187,6 +199,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		mEmailEdit.setText(mEmail);
 		mImageEdit = (EditText) findViewById(R.id.image_edit);
 		mImageEdit.setText(mImage);
+		mThumbnailEdit = (EditText) findViewById(R.id.thumbnail_edit);
+		mThumbnailEdit.setText(mThumbnail);
 		mStreetEdit = (EditText) findViewById(R.id.street_edit);
 		mStreetEdit.setText(mStreet);
 		mCityEdit = (EditText) findViewById(R.id.city_edit);
@@ -218,7 +232,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 			mZip = "postalCode";
 			mState = "st";
 			mCountry = "co";
-			// mImage = "thumbnailphoto";
+			mThumbnail = "thumbnailphoto";
 		}
 	}
 
@@ -270,6 +284,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 			userData.putString(PARAM_ENCRYPTION, mEncryption + "");
 			userData.putString(PARAM_SEARCHFILTER, mSearchFilter);
 			userData.putString(PARAM_BASEDN, mBaseDN);
+			userData.putString(PARAM_PAGESIZE, mPageSize + "");
+			userData.putString(PARAM_SHARDS, mShards + "");
 			// Mappings for LDAP data
 			userData.putString(PARAM_MAPPING + Contact.FIRSTNAME, mFirstName);
 			userData.putString(PARAM_MAPPING + Contact.LASTNAME, mLastName);
@@ -278,6 +294,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 			userData.putString(PARAM_MAPPING + Contact.HOMEPHONE, mHomePhone);
 			userData.putString(PARAM_MAPPING + Contact.MAIL, mEmail);
 			userData.putString(PARAM_MAPPING + Contact.PHOTO, mImage);
+			userData.putString(PARAM_MAPPING + Contact.THUMBNAIL, mThumbnail);
 			userData.putString(PARAM_MAPPING + Contact.STREET, mStreet);
 			userData.putString(PARAM_MAPPING + Contact.CITY, mCity);
 			userData.putString(PARAM_MAPPING + Contact.ZIP, mZip);
@@ -368,6 +385,18 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 	public void saveAccount(View view) {
 		mSearchFilter = mSearchFilterEdit.getText().toString();
 		mBaseDN = mBaseDNSpinner.getText().toString();
+		try {
+			mPageSize = Integer.parseInt(mPageSizeEdit.getText().toString());
+		} catch (NumberFormatException nfe) {
+			Log.i(TAG, "No page size given. Disable paging");
+			mPageSize = 0;
+		}
+		try {
+			mShards = Integer.parseInt(mShardsEdit.getText().toString());
+		} catch (NumberFormatException nfe) {
+			Log.i(TAG, "No number of parallel searches given. Disable parallel searches");
+			mShards = 1;
+		}
 		mFirstName = mFirstNameEdit.getText().toString();
 		mLastName = mLastNameEdit.getText().toString();
 		mOfficePhone = mOfficePhoneEdit.getText().toString();
@@ -375,6 +404,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		mHomePhone = mHomePhoneEdit.getText().toString();
 		mEmail = mEmailEdit.getText().toString();
 		mImage = mImageEdit.getText().toString();
+		mThumbnail = mThumbnailEdit.getText().toString();
 		mStreet = mStreetEdit.getText().toString();
 		mCity = mCityEdit.getText().toString();
 		mZip = mZipEdit.getText().toString();
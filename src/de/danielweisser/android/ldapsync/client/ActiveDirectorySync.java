@@ -0,0 +1,345 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.util.Base64;
+import com.unboundid.util.StaticUtils;
+
+import de.danielweisser.android.ldapsync.syncadapter.SyncState;
+
+/**
+ * Incremental synchronization with Active Directory, which does not support the content synchronization of RFC 4533. The changes are retrieved with the
+ * DirSync control. If DirSync is not allowed for the user, the objects with a uSNChanged higher than the highestCommittedUSN of the last sync are
+ * retrieved and deleted objects are found among the tombstones. As USNs and DirSync cookies are only valid for a single domain controller, the state
+ * is kept per domain controller.
+ *
+ * DirSync and uSNChanged only tell which objects changed, so the changed objects are read again with the search filter of the account. Changed objects
+ * that do not match the search filter any more are deleted.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class ActiveDirectorySync {
+
+	private static final String TAG = "ActiveDirectorySync";
+
+	/**
+	 * The OID of the show deleted control, that makes tombstones visible.
+	 */
+	public static final String SHOW_DELETED_OID = "1.2.840.113556.1.4.417";
+
+	private static final String OBJECT_GUID = "objectGUID";
+	private static final String IS_DELETED = "isDeleted";
+	private static final String USN_CHANGED = "uSNChanged";
+	private static final String HIGHEST_COMMITTED_USN = "highestCommittedUSN";
+	private static final String DS_SERVICE_NAME = "dsServiceName";
+	private static final String DEFAULT_NAMING_CONTEXT = "defaultNamingContext";
+
+	private static final String STATE_DIRSYNC = "dirsync:";
+	private static final String STATE_USN = "usn:";
+
+	/**
+	 * Number of changed objects that are read again with a single search.
+	 */
+	private static final int REREAD_BATCH_SIZE = 50;
+
+	private final LDAPConnection connection;
+	private final int pageSize;
+	private final String baseDN;
+	private final String searchFilter;
+	private final String[] attributes;
+	private final ContactMapper mapper;
+	private final SyncState syncState;
+	private final ContactListener listener;
+
+	/**
+	 * Changed objects by hex objectGUID, that still have to be read again.
+	 */
+	private final LinkedHashMap<String, byte[]> changedObjects = new LinkedHashMap<String, byte[]>();
+	private int reportedCount = 0;
+
+	ActiveDirectorySync(LDAPConnection connection, int pageSize, String baseDN, String searchFilter, String[] attributes, Bundle mappingBundle,
+			SyncState syncState, ContactListener listener) {
+		this.connection = connection;
+		this.pageSize = pageSize;
+		this.baseDN = baseDN;
+		this.searchFilter = searchFilter;
+		this.attributes = new String[attributes.length + 1];
+		System.arraycopy(attributes, 0, this.attributes, 0, attributes.length);
+		this.attributes[attributes.length] = OBJECT_GUID;
+		this.mapper = new ContactMapper(mappingBundle);
+		this.syncState = syncState;
+		this.listener = listener;
+	}
+
+	/**
+	 * @param rootDSE
+	 *            The root DSE of the server
+	 * @return {@code true} if the server is an Active Directory domain controller.
+	 */
+	static boolean isActiveDirectory(RootDSE rootDSE) {
+		return rootDSE != null && (rootDSE.supportsControl(DirSyncControl.DIRSYNC_OID) || rootDSE.supportsControl(SHOW_DELETED_OID));
+	}
+
+	/**
+	 * Retrieves the contacts changed since the last sync with this domain controller, or all contacts if there is no state for this domain controller.
+	 *
+	 * @return {@code false} if the server does not provide the information needed for an incremental sync, {@code true} if the sync was successful
+	 * @throws LDAPException
+	 *             If the sync failed
+	 */
+	boolean fetchContacts() throws LDAPException {
+		// Not cached, as the highestCommittedUSN changes with every modification
+		final Entry rootDSE = connection.getEntry("", DS_SERVICE_NAME, HIGHEST_COMMITTED_USN, DEFAULT_NAMING_CONTEXT, RootDSE.ATTR_SUPPORTED_CONTROL);
+		final String server = (rootDSE != null) ? rootDSE.getAttributeValue(DS_SERVICE_NAME) : null;
+		final Long highestCommittedUSN = (rootDSE != null) ? rootDSE.getAttributeValueAsLong(HIGHEST_COMMITTED_USN) : null;
+		if (server == null || highestCommittedUSN == null) {
+			return false;
+		}
+		final String namingContext = getNamingContext(rootDSE.getAttributeValue(DEFAULT_NAMING_CONTEXT));
+		final String state = syncState.getDirectoryState(server);
+		Log.i(TAG, "Sync with " + server + ", last state " + state);
+
+		if (rootDSE.hasAttributeValue(RootDSE.ATTR_SUPPORTED_CONTROL, DirSyncControl.DIRSYNC_OID) && (state == null || state.startsWith(STATE_DIRSYNC))) {
+			try {
+				final byte[] cookie = decodeCookie(state);
+				syncState.setDirectoryState(server, STATE_DIRSYNC + Base64.encode(fetchDirSync(namingContext, cookie)));
+				syncState.setCompleteResult(cookie == null);
+				syncState.addParseFailures(mapper.getParseFailures());
+				return true;
+			} catch (LDAPException e) {
+				if (reportedCount > 0) {
+					throw e;
+				}
+				Log.w(TAG, "DirSync not possible, using uSNChanged", e);
+			}
+		}
+
+		long lastUSN = -1;
+		if (state != null && state.startsWith(STATE_USN)) {
+			try {
+				lastUSN = Long.parseLong(state.substring(STATE_USN.length()));
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid state: " + state);
+			}
+		}
+		fetchByUSN(namingContext, lastUSN);
+		syncState.setDirectoryState(server, STATE_USN + highestCommittedUSN);
+		syncState.setCompleteResult(lastUSN < 0);
+		syncState.addParseFailures(mapper.getParseFailures());
+		return true;
+	}
+
+	/**
+	 * Retrieves the changes with the DirSync control. DirSync only works on the root of a naming context, so changes outside of the baseDN are skipped.
+	 *
+	 * @return The cookie for the next sync
+	 */
+	private byte[] fetchDirSync(String namingContext, byte[] cookie) throws LDAPException {
+		final boolean initial = (cookie == null);
+		final String filter = Filter.createORFilter(Filter.create(searchFilter), Filter.createEqualityFilter(IS_DELETED, "TRUE")).toString();
+		final String[] dirSyncAttributes = new String[attributes.length + 1];
+		System.arraycopy(attributes, 0, dirSyncAttributes, 0, attributes.length);
+		dirSyncAttributes[attributes.length] = IS_DELETED;
+
+		final ChangeListener changeListener = new ChangeListener(initial);
+		SearchResult searchResult;
+		do {
+			final SearchRequest request = new SearchRequest(changeListener, namingContext, SearchScope.SUB, filter, dirSyncAttributes);
+			request.addControl(new DirSyncControl(cookie));
+			searchResult = connection.search(request);
+			cookie = DirSyncControl.getCookie(searchResult);
+			rereadChangedObjects();
+		} while (DirSyncControl.hasMoreResults(searchResult));
+		Log.i(TAG, reportedCount + " changes returned by DirSync.");
+		return cookie;
+	}
+
+	/**
+	 * Retrieves the objects with a uSNChanged higher than the given USN and the tombstones of the objects deleted since then.
+	 */
+	private void fetchByUSN(String namingContext, long lastUSN) throws LDAPException {
+		final boolean initial = (lastUSN < 0);
+		final ChangeListener changeListener = new ChangeListener(initial);
+		final String filter;
+		if (initial) {
+			filter = searchFilter;
+		} else {
+			// Objects that do not match the search filter any more have to be deleted, so the filter is applied when they are read again
+			filter = Filter.createGreaterOrEqualFilter(USN_CHANGED, Long.toString(lastUSN + 1)).toString();
+		}
+		final String[] changeAttributes = initial ? attributes : new String[] { OBJECT_GUID };
+		if (pageSize > 0) {
+			LDAPUtilities.fetchPaged(connection, pageSize, baseDN, filter, changeAttributes, changeListener);
+		} else {
+			connection.search(changeListener, baseDN, SearchScope.SUB, filter, changeAttributes);
+		}
+		if (initial) {
+			Log.i(TAG, reportedCount + " entries returned.");
+			return;
+		}
+		rereadChangedObjects();
+
+		final Filter deletedFilter = Filter.createANDFilter(Filter.createEqualityFilter(IS_DELETED, "TRUE"), Filter.createGreaterOrEqualFilter(USN_CHANGED,
+				Long.toString(lastUSN + 1)));
+		final SearchRequest request = new SearchRequest(changeListener, namingContext, SearchScope.SUB, deletedFilter, OBJECT_GUID, IS_DELETED);
+		request.addControl(new Control(SHOW_DELETED_OID, true));
+		try {
+			connection.search(request);
+		} catch (LDAPException e) {
+			// Reading the tombstones requires the permission to list the deleted objects container
+			Log.w(TAG, "Cannot read deleted objects", e);
+		}
+		Log.i(TAG, reportedCount + " changes since USN " + lastUSN + ".");
+	}
+
+	/**
+	 * Reads the changed objects again with the search filter of the account in batches. Changed objects that are not returned do not match the search
+	 * filter any more and are deleted.
+	 */
+	private void rereadChangedObjects() throws LDAPException {
+		while (!changedObjects.isEmpty()) {
+			final ArrayList<Filter> guidFilters = new ArrayList<Filter>(REREAD_BATCH_SIZE);
+			final ArrayList<String> batch = new ArrayList<String>(REREAD_BATCH_SIZE);
+			final Iterator<Map.Entry<String, byte[]>> it = changedObjects.entrySet().iterator();
+			while (it.hasNext() && batch.size() < REREAD_BATCH_SIZE) {
+				final Map.Entry<String, byte[]> e = it.next();
+				batch.add(e.getKey());
+				guidFilters.add(Filter.createEqualityFilter(OBJECT_GUID, e.getValue()));
+				it.remove();
+			}
+			final SearchResult searchResult = connection.search(baseDN, SearchScope.SUB, Filter.createANDFilter(Filter.create(searchFilter), Filter
+					.createORFilter(guidFilters)), attributes);
+			for (SearchResultEntry e : searchResult.getSearchEntries()) {
+				final String uuid = StaticUtils.toHex(e.getAttributeValueBytes(OBJECT_GUID));
+				batch.remove(uuid);
+				reportContact(e, uuid);
+			}
+			for (String uuid : batch) {
+				reportedCount++;
+				listener.onContactDeleted(null, uuid);
+			}
+		}
+	}
+
+	private void reportContact(SearchResultEntry e, String uuid) {
+		reportedCount++;
+		final Contact u = mapper.map(e);
+		if (u != null) {
+			u.setUuid(uuid);
+			u.setModifyTimestamp(e.getAttributeValue(LDAPUtilities.MODIFY_TIMESTAMP));
+			listener.onContact(u);
+		}
+	}
+
+	/**
+	 * @return The naming context containing the baseDN, which is the base of DirSync searches and of the deleted objects container.
+	 */
+	private String getNamingContext(String defaultNamingContext) {
+		try {
+			if (defaultNamingContext != null && DN.isDescendantOf(baseDN, defaultNamingContext, true)) {
+				return defaultNamingContext;
+			}
+		} catch (LDAPException e) {
+			Log.w(TAG, "Invalid DN: " + baseDN);
+		}
+		return baseDN;
+	}
+
+	private static byte[] decodeCookie(String state) {
+		if (state == null || state.length() == STATE_DIRSYNC.length()) {
+			return null;
+		}
+		try {
+			return Base64.decode(state.substring(STATE_DIRSYNC.length()));
+		} catch (ParseException e) {
+			Log.w(TAG, "Invalid DirSync cookie: " + state);
+			return null;
+		}
+	}
+
+	/**
+	 * Handles the objects returned by DirSync or the uSNChanged searches. For an initial sync, the complete objects are converted directly, otherwise the
+	 * changed objects are collected to be read again. Tombstones are reported as deleted contacts.
+	 */
+	private class ChangeListener implements SearchResultListener {
+
+		private static final long serialVersionUID = 5512860187293664193L;
+
+		private final boolean initial;
+
+		public ChangeListener(boolean initial) {
+			this.initial = initial;
+		}
+
+		public void searchEntryReturned(SearchResultEntry e) {
+			final byte[] guid = e.getAttributeValueBytes(OBJECT_GUID);
+			if (guid == null) {
+				return;
+			}
+			final String uuid = StaticUtils.toHex(guid);
+			if ("TRUE".equalsIgnoreCase(e.getAttributeValue(IS_DELETED))) {
+				// The DN of a tombstone is mangled, only the objectGUID identifies the object
+				reportedCount++;
+				listener.onContactDeleted(null, uuid);
+			} else if (!isBelowBaseDN(e)) {
+				// Moved out of the baseDN
+				if (!initial) {
+					reportedCount++;
+					listener.onContactDeleted(null, uuid);
+				}
+			} else if (initial) {
+				reportContact(e, uuid);
+			} else {
+				changedObjects.put(uuid, guid);
+			}
+		}
+
+		public void searchReferenceReturned(SearchResultReference r) {
+			// Referrals are not followed
+		}
+
+		private boolean isBelowBaseDN(SearchResultEntry e) {
+			try {
+				return DN.isDescendantOf(e.getDN(), baseDN, true);
+			} catch (LDAPException ex) {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+/**
+ * Adjusts the page size of a paged search based on the measured latency and size of the pages returned so far. Pages should take about
+ * {@link #TARGET_PAGE_MILLIS} to arrive and should not be larger than {@link #MAX_PAGE_BYTES}.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class AdaptivePageSize {
+
+	/**
+	 * The smallest page size that is requested.
+	 */
+	static final int MIN_PAGE_SIZE = 50;
+
+	/**
+	 * The largest page size that is requested, unless a larger one is configured (default MaxPageSize of Active Directory).
+	 */
+	static final int MAX_PAGE_SIZE = 1000;
+
+	private static final long TARGET_PAGE_MILLIS = 2000;
+	private static final long MAX_PAGE_BYTES = 512 * 1024;
+
+	private int maxPageSize;
+	private int pageSize;
+
+	/**
+	 * @param initialPageSize
+	 *            The configured page size of the account.
+	 */
+	AdaptivePageSize(int initialPageSize) {
+		this.maxPageSize = Math.max(initialPageSize, MAX_PAGE_SIZE);
+		this.pageSize = limit(initialPageSize);
+	}
+
+	/**
+	 * @return The page size to use for the next page.
+	 */
+	int get() {
+		return pageSize;
+	}
+
+	/**
+	 * Records the statistics of a page and adjusts the page size for the next page.
+	 * 
+	 * @param entries
+	 *            The number of entries in the page
+	 * @param bytes
+	 *            The (estimated) size of the entries in the page
+	 * @param millis
+	 *            The time it took to retrieve the page
+	 * @param lastPage
+	 *            {@code true} if it was the last page of the search
+	 */
+	void pageFetched(int entries, long bytes, long millis, boolean lastPage) {
+		if (lastPage || entries == 0) {
+			// A short last page says nothing about the optimal size
+			return;
+		}
+		if (entries < pageSize) {
+			// The server limits the page size, larger pages are not requested any more
+			maxPageSize = Math.max(entries, MIN_PAGE_SIZE);
+		}
+		final double byLatency = entries * (double) TARGET_PAGE_MILLIS / Math.max(1, millis);
+		final double byBytes = entries * (double) MAX_PAGE_BYTES / Math.max(1, bytes);
+		final double target = Math.min(byLatency, byBytes);
+		// Only go half the way to avoid oscillating page sizes
+		pageSize = limit((int) ((entries + target) / 2));
+	}
+
+	private int limit(int size) {
+		return Math.min(Math.max(size, MIN_PAGE_SIZE), maxPageSize);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Passes the contacts to a listener on a thread of its own, so the contacts are written to the contacts provider while the LDAP search continues. The
+ * contacts are queued in the order they are received. If the queue is full, the search waits for the writes (back-pressure), so only a bounded
+ * number of contacts is in memory.
+ * <p>
+ * {@link #isModified(String, String, String)} is answered by the listener directly, it must not wait for the contacts being written.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class AsyncContactListener implements ContactListener {
+
+	private static final String TAG = "AsyncContactListener";
+
+	/**
+	 * Number of contacts that may wait to be written, before the search is slowed down.
+	 */
+	private static final int MAX_PENDING = 200;
+
+	private static final int CONTACT = 0;
+	private static final int UNCHANGED = 1;
+	private static final int DELETED = 2;
+	private static final Event END = new Event(-1, null, null, null);
+
+	private final ContactListener listener;
+	private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(MAX_PENDING);
+	private final Thread writer;
+	private volatile RuntimeException error = null;
+	private volatile boolean cancelled = false;
+	private long producerWait = 0;
+	private long consumerWait = 0;
+	private boolean ended = false;
+
+	/**
+	 * @param listener
+	 *            The listener that writes the contacts, its methods are called on the thread of this listener
+	 */
+	public AsyncContactListener(ContactListener listener) {
+		this.listener = listener;
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, TAG);
+		writer.start();
+	}
+
+	public void onContact(Contact contact) {
+		put(new Event(CONTACT, contact, null, null));
+	}
+
+	public void onContactUnchanged(String dn, String uuid) {
+		put(new Event(UNCHANGED, null, dn, uuid));
+	}
+
+	public void onContactDeleted(String dn, String uuid) {
+		put(new Event(DELETED, null, dn, uuid));
+	}
+
+	public boolean isModified(String dn, String uuid, String modifyTimestamp) {
+		return listener.isModified(dn, uuid, modifyTimestamp);
+	}
+
+	/**
+	 * Waits until all contacts are written.
+	 *
+	 * @return {@code true} if all contacts were passed to the listener, {@code false} if the listener failed or the thread was interrupted, so
+	 *         contacts may be missing
+	 */
+	public boolean finish() {
+		end();
+		Log.i(TAG, "Search waited " + producerWait + " ms for writes, writes waited " + consumerWait + " ms for the search");
+		if (error != null) {
+			Log.e(TAG, "Not all contacts were written", error);
+			return false;
+		}
+		if (cancelled) {
+			Log.w(TAG, "Interrupted, not all contacts were written");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the writer thread. Contacts that were not written yet are dropped.
+	 */
+	public void close() {
+		cancelled = true;
+		queue.clear();
+		end();
+	}
+
+	private void put(Event event) {
+		if (error != null || cancelled) {
+			return;
+		}
+		if (queue.offer(event)) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		try {
+			queue.put(event);
+		} catch (InterruptedException e) {
+			// The contact is dropped, so the result is incomplete
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		}
+		producerWait += System.currentTimeMillis() - start;
+	}
+
+	private void end() {
+		if (ended) {
+			return;
+		}
+		ended = true;
+		try {
+			queue.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			cancelled = true;
+			writer.interrupt();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write() {
+		while (true) {
+			Event event = queue.poll();
+			if (event == null) {
+				final long start = System.currentTimeMillis();
+				try {
+					event = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				consumerWait += System.currentTimeMillis() - start;
+			}
+			if (event == END) {
+				return;
+			}
+			if (error != null || cancelled) {
+				// The remaining contacts are dropped, so the search is not blocked
+				continue;
+			}
+			try {
+				if (event.type == CONTACT) {
+					listener.onContact(event.contact);
+				} else if (event.type == UNCHANGED) {
+					listener.onContactUnchanged(event.dn, event.uuid);
+				} else {
+					listener.onContactDeleted(event.dn, event.uuid);
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Cannot write contact", e);
+				error = e;
+			}
+		}
+	}
+
+	private static final class Event {
+		private final int type;
+		private final Contact contact;
+		private final String dn;
+		private final String uuid;
+
+		private Event(int type, Contact contact, String dn, String uuid) {
+			this.type = type;
+			this.contact = contact;
+			this.dn = dn;
+			this.uuid = uuid;
+		}
+	}
+}
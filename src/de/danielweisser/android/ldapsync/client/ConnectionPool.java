@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+
+/**
+ * Keeps idle connections to a LDAP server for reuse, so that consecutive operations (e.g. the authentication check and the following sync) do not need
+ * a new TCP connection, TLS handshake and bind. The pools live as long as the process. Idle connections are closed after {@link #IDLE_TIMEOUT} by a single reaper task.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class ConnectionPool {
+
+	private static final String TAG = "ConnectionPool";
+
+	/**
+	 * Idle connections are closed after 5 minutes.
+	 */
+	static final long IDLE_TIMEOUT = 5 * 60 * 1000L;
+
+	/**
+	 * Connections that were idle longer than 10 seconds are checked before they are reused.
+	 */
+	private static final long HEALTH_CHECK_INTERVAL = 10 * 1000L;
+
+	/**
+	 * Interval of the task that closes the idle connections of all pools.
+	 */
+	private static final long REAPER_INTERVAL = 60 * 1000L;
+
+	/**
+	 * Maximum number of idle connections per server.
+	 */
+	private static final int MAX_IDLE_CONNECTIONS = 2;
+
+	private static final HashMap<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+	private static Timer idleTimer;
+
+	/**
+	 * The root DSEs by connection, kept while the connection is open or pooled.
+	 */
+	private static final WeakHashMap<LDAPConnection, RootDSE> rootDSEs = new WeakHashMap<LDAPConnection, RootDSE>();
+
+	private final String server;
+	private final LinkedList<IdleConnection> idleConnections = new LinkedList<IdleConnection>();
+
+	private ConnectionPool(String server) {
+		this.server = server;
+	}
+
+	/**
+	 * @param server
+	 *            Identifies the server (host, port and encryption)
+	 * @return The pool of the server
+	 */
+	static synchronized ConnectionPool getPool(String server) {
+		ConnectionPool pool = pools.get(server);
+		if (pool == null) {
+			pool = new ConnectionPool(server);
+			pools.put(server, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns the root DSE of the server of a connection. It is read once per connection and reused by the following syncs, as the supported controls
+	 * of a server do not change while a connection is open.
+	 *
+	 * @param connection
+	 *            An established connection
+	 * @return The root DSE or {@code null} if the server does not provide it
+	 * @throws LDAPException
+	 *             If the root DSE cannot be read
+	 */
+	static RootDSE getRootDSE(LDAPConnection connection) throws LDAPException {
+		synchronized (rootDSEs) {
+			final RootDSE rootDSE = rootDSEs.get(connection);
+			if (rootDSE != null) {
+				return rootDSE;
+			}
+		}
+		final RootDSE rootDSE = connection.getRootDSE();
+		if (rootDSE != null) {
+			synchronized (rootDSEs) {
+				rootDSEs.put(connection, rootDSE);
+			}
+		}
+		return rootDSE;
+	}
+
+	/**
+	 * Takes a healthy idle connection out of the pool. A connection that was bound with other credentials is bound again.
+	 *
+	 * @param bindDN
+	 *            The DN to use to bind to the server, may be {@code null}
+	 * @param bindPW
+	 *            The password to use to bind to the server, may be {@code null}
+	 * @param verifyCredentials
+	 *            {@code true} to bind again in any case, so the server checks the credentials (authentication of the user)
+	 * @return An idle connection or {@code null} if no connection could be reused.
+	 */
+	LDAPConnection take(String bindDN, String bindPW, boolean verifyCredentials) {
+		IdleConnection idle;
+		while ((idle = poll()) != null) {
+			try {
+				if (!idle.connection.isConnected()) {
+					throw new LDAPException(ResultCode.SERVER_DOWN, "Connection closed by server");
+				}
+				if (verifyCredentials || !equals(bindDN, idle.bindDN) || !equals(bindPW, idle.bindPW)) {
+					if (bindDN == null || bindPW == null) {
+						// An anonymous connection cannot be created by a bind
+						idle.connection.close();
+						continue;
+					}
+					Log.d(TAG, "Bind again to " + server);
+					idle.connection.bind(bindDN, bindPW);
+				} else if (System.currentTimeMillis() - idle.lastUsed > HEALTH_CHECK_INTERVAL) {
+					// Reading the root DSE without attributes is the cheapest operation
+					idle.connection.getEntry("", "1.1");
+				}
+				Log.d(TAG, "Reusing connection to " + server);
+				return idle.connection;
+			} catch (LDAPException e) {
+				Log.d(TAG, "Discarding connection to " + server + ": " + e.getMessage());
+				idle.connection.close();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a connection to the pool. If the pool is full, the connection is closed.
+	 *
+	 * @param connection
+	 *            A connection that was obtained from this pool or created for this server
+	 * @param bindDN
+	 *            The DN the connection is bound with
+	 * @param bindPW
+	 *            The password the connection is bound with
+	 */
+	void release(LDAPConnection connection, String bindDN, String bindPW) {
+		if (!connection.isConnected()) {
+			connection.close();
+			return;
+		}
+		boolean pooled = false;
+		synchronized (this) {
+			if (idleConnections.size() < MAX_IDLE_CONNECTIONS) {
+				idleConnections.addFirst(new IdleConnection(connection, bindDN, bindPW));
+				pooled = true;
+			}
+		}
+		if (pooled) {
+			// Outside the lock of the pool, the reaper locks the pools while it holds the class lock
+			startReaper();
+		} else {
+			connection.close();
+		}
+	}
+
+	private synchronized IdleConnection poll() {
+		return idleConnections.isEmpty() ? null : idleConnections.removeFirst();
+	}
+
+	/**
+	 * Closes all connections that were idle longer than {@link #IDLE_TIMEOUT}.
+	 *
+	 * @return {@code true} if idle connections remain in the pool
+	 */
+	private synchronized boolean closeIdleConnections() {
+		final long now = System.currentTimeMillis();
+		for (Iterator<IdleConnection> it = idleConnections.iterator(); it.hasNext();) {
+			final IdleConnection idle = it.next();
+			if (now - idle.lastUsed >= IDLE_TIMEOUT) {
+				Log.d(TAG, "Closing idle connection to " + server);
+				idle.connection.close();
+				it.remove();
+			}
+		}
+		return !idleConnections.isEmpty();
+	}
+
+	/**
+	 * Starts the single task that closes the idle connections of all pools, if it is not running.
+	 */
+	private static synchronized void startReaper() {
+		if (idleTimer != null) {
+			return;
+		}
+		idleTimer = new Timer(TAG, true);
+		idleTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				reap();
+			}
+		}, REAPER_INTERVAL, REAPER_INTERVAL);
+	}
+
+	/**
+	 * Closes the idle connections of all pools and stops the task, when no idle connections remain.
+	 */
+	private static synchronized void reap() {
+		boolean idle = false;
+		for (ConnectionPool pool : pools.values()) {
+			idle |= pool.closeIdleConnections();
+		}
+		if (!idle && idleTimer != null) {
+			idleTimer.cancel();
+			idleTimer = null;
+		}
+	}
+
+	private static boolean equals(String a, String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	private static final class IdleConnection {
+		private final LDAPConnection connection;
+		private final String bindDN;
+		private final String bindPW;
+		private final long lastUsed;
+
+		private IdleConnection(LDAPConnection connection, String bindDN, String bindPW) {
+			this.connection = connection;
+			this.bindDN = bindDN;
+			this.bindPW = bindPW;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+}
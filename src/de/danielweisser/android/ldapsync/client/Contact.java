@@ -16,12 +16,11 @@
 
 package de.danielweisser.android.ldapsync.client;
 
-import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
-import android.util.Log;
 
 import com.unboundid.ldap.sdk.ReadOnlyEntry;
 
@@ -38,6 +37,7 @@ public class Contact {
 	public static String HOMEPHONE = "HOMEPHONE";
 	public static String MAIL = "MAIL";
 	public static String PHOTO = "PHOTO";
+	public static String THUMBNAIL = "THUMBNAIL";
 	public static String STREET = "STREET";
 	public static String CITY = "CITY";
 	public static String STATE = "STATE";
@@ -45,6 +45,7 @@ public class Contact {
 	public static String COUNTRY = "COUNTRY";
 
 	private String dn = "";
+	private String uuid = null;
 	private String firstName = "";
 	private String lastName = "";
 	private String cellWorkPhone = "";
@@ -52,7 +53,12 @@ public class Contact {
 	private String homePhone = "";
 	private String[] emails = null;
 	private byte[] image = null;
+	private String displayPhoto = null;
 	private Address address = null;
+	private boolean imageLoaded = true;
+	private String modifyTimestamp = null;
+
+	private static final char DIGEST_SEPARATOR = ':';
 
 	public String getDn() {
 		return dn;
@@ -62,6 +68,17 @@ public class Contact {
 		this.dn = dn;
 	}
 
+	/**
+	 * @return The unique id of the LDAP entry (e.g. entryUUID) as hex string or {@code null} if unknown.
+	 */
+	public String getUuid() {
+		return uuid;
+	}
+
+	public void setUuid(String uuid) {
+		this.uuid = uuid;
+	}
+
 	public String getFirstName() {
 		return firstName;
 	}
@@ -118,6 +135,40 @@ public class Contact {
 		this.image = image;
 	}
 
+	/**
+	 * @return The hash of the LDAP photo, under which the display photo is kept in the {@link PhotoCache}, or {@code null} if only the contact photo
+	 *         of {@link #getImage()} is available.
+	 */
+	public String getDisplayPhoto() {
+		return displayPhoto;
+	}
+
+	public void setDisplayPhoto(String displayPhoto) {
+		this.displayPhoto = displayPhoto;
+	}
+
+	/**
+	 * @return {@code false} if the photo was not retrieved from the LDAP server, as it is unchanged. The stored photo must be kept in this case.
+	 */
+	public boolean isImageLoaded() {
+		return imageLoaded;
+	}
+
+	public void setImageLoaded(boolean imageLoaded) {
+		this.imageLoaded = imageLoaded;
+	}
+
+	/**
+	 * @return The modifyTimestamp of the LDAP entry or {@code null} if unknown.
+	 */
+	public String getModifyTimestamp() {
+		return modifyTimestamp;
+	}
+
+	public void setModifyTimestamp(String modifyTimestamp) {
+		this.modifyTimestamp = modifyTimestamp;
+	}
+
 	public void setAddress(Address address) {
 		this.address = address;
 	}
@@ -127,7 +178,67 @@ public class Contact {
 	}
 
 	/**
-	 * Creates and returns an instance of the user from the provided LDAP data.
+	 * Computes the digest of the fields that are stored in the contact. It consists of the hash of the text fields and the hash of the photo,
+	 * separated by a colon. If the photo was not loaded, the hash of the photo is taken from the previous digest, as the stored photo is kept.
+	 * 
+	 * @param previousDigest
+	 *            The digest stored with the contact or {@code null}
+	 * @return The digest of the contact
+	 */
+	public String getDigest(String previousDigest) {
+		String imageDigest;
+		if (imageLoaded) {
+			imageDigest = (image != null) ? PhotoCache.hash(image) : "";
+		} else if (previousDigest != null && previousDigest.indexOf(DIGEST_SEPARATOR) >= 0) {
+			imageDigest = previousDigest.substring(previousDigest.indexOf(DIGEST_SEPARATOR) + 1);
+		} else {
+			// Unknown, so the next digest with a loaded photo does not match
+			imageDigest = "?";
+		}
+		return getFieldDigest() + DIGEST_SEPARATOR + imageDigest;
+	}
+
+	/**
+	 * @return The MD5 hash of the text fields as hex string
+	 */
+	private String getFieldDigest() {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("MD5");
+			update(md, firstName);
+			update(md, lastName);
+			update(md, workPhone);
+			update(md, cellWorkPhone);
+			update(md, homePhone);
+			// Only the first mail address is stored
+			update(md, (emails != null && emails.length > 0) ? emails[0] : null);
+			if (address != null) {
+				update(md, address.getStreet());
+				update(md, address.getCity());
+				update(md, address.getState());
+				update(md, address.getZip());
+				update(md, address.getCountry());
+			}
+			return PhotoCache.toHex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void update(MessageDigest md, String value) throws UnsupportedEncodingException {
+		// A null value and an empty string are different fields
+		if (value != null) {
+			md.update(value.getBytes("UTF-8"));
+			md.update((byte) 0);
+		} else {
+			md.update((byte) 1);
+		}
+	}
+
+	/**
+	 * Creates and returns an instance of the user from the provided LDAP data. To convert several entries, a single {@link ContactMapper} should be
+	 * used, as the mapping bundle is resolved by its constructor.
 	 * 
 	 * @param user
 	 *            The LDAPObject containing user data
@@ -136,52 +247,21 @@ public class Contact {
 	 * @return user The new instance of LDAP user created from the LDAP data.
 	 */
 	public static Contact valueOf(ReadOnlyEntry user, Bundle mB) {
-		Contact c = new Contact();
-		try {
-			c.setDn(user.getDN());
-			c.setFirstName(user.hasAttribute(mB.getString(FIRSTNAME)) ? user.getAttributeValue(mB.getString(FIRSTNAME)) : null);
-			c.setLastName(user.hasAttribute(mB.getString(LASTNAME)) ? user.getAttributeValue(mB.getString(LASTNAME)) : null);
-			if ((user.hasAttribute(mB.getString(FIRSTNAME)) ? user.getAttributeValue(mB.getString(FIRSTNAME)) : null) == null
-					|| (user.hasAttribute(mB.getString(LASTNAME)) ? user.getAttributeValue(mB.getString(LASTNAME)) : null) == null) {
-				return null;
-			}
-			c.setWorkPhone(user.hasAttribute(mB.getString(TELEPHONE)) ? user.getAttributeValue(mB.getString(TELEPHONE)) : null);
-			c.setCellWorkPhone(user.hasAttribute(mB.getString(MOBILE)) ? user.getAttributeValue(mB.getString(MOBILE)) : null);
-			c.setHomePhone(user.hasAttribute(mB.getString(HOMEPHONE)) ? user.getAttributeValue(mB.getString(HOMEPHONE)) : null);
-			c.setEmails(user.hasAttribute(mB.getString(MAIL)) ? user.getAttributeValues(mB.getString(MAIL)) : null);
-			byte[] image = null;
-			if (user.hasAttribute(mB.getString(PHOTO))) {
-				byte[] array = user.getAttributeValueBytes(mB.getString(PHOTO));
-
-				try {
-					Bitmap myBitmap = BitmapFactory.decodeByteArray(array, 0, array.length);
-					if (myBitmap != null) {
-						ByteArrayOutputStream baos = new ByteArrayOutputStream();
-						myBitmap.compress(Bitmap.CompressFormat.JPEG, 90, baos);
-						image = baos.toByteArray();
-					}
-				} catch (OutOfMemoryError e) {
-					// Do not set an image, when an OutOfMemoryError occurs
-					image = null;
-					array = null;
-				}
-			}
-			c.setImage(image);
-
-			// Get address
-			if (user.hasAttribute(mB.getString(STREET)) || user.hasAttribute(mB.getString(CITY)) || user.hasAttribute(mB.getString(STATE))
-					|| user.hasAttribute(mB.getString(ZIP)) || user.hasAttribute(mB.getString(COUNTRY))) {
-				Address a = new Address();
-				a.setStreet(user.hasAttribute(mB.getString(STREET)) ? user.getAttributeValue(mB.getString(STREET)) : null);
-				a.setCity(user.hasAttribute(mB.getString(CITY)) ? user.getAttributeValue(mB.getString(CITY)) : null);
-				a.setState(user.hasAttribute(mB.getString(STATE)) ? user.getAttributeValue(mB.getString(STATE)) : null);
-				a.setZip(user.hasAttribute(mB.getString(ZIP)) ? user.getAttributeValue(mB.getString(ZIP)) : null);
-				a.setCountry(user.hasAttribute(mB.getString(COUNTRY)) ? user.getAttributeValue(mB.getString(COUNTRY)) : null);
-				c.setAddress(a);
-			}
-		} catch (final Exception ex) {
-			Log.i("User", "Error parsing LDAP user object" + ex.toString());
+		final Contact c = new ContactMapper(mB).map(user);
+		if (c != null && c.getImage() != null) {
+			c.setImage(convertImage(c.getImage()));
 		}
 		return c;
 	}
+
+	/**
+	 * Converts the photo of a LDAP entry to a JPEG image of the size of a contact photo.
+	 * 
+	 * @param array
+	 *            The value of the photo attribute
+	 * @return The JPEG image or {@code null} if the photo cannot be decoded
+	 */
+	public static byte[] convertImage(byte[] array) {
+		return PhotoPipeline.convert(array);
+	}
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+/**
+ * Receives the contacts of a LDAP search one by one, as soon as they are returned by the server.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public interface ContactListener {
+
+	/**
+	 * Called for every contact that was read from the LDAP server.
+	 * 
+	 * @param contact
+	 *            The contact created from the LDAP entry
+	 */
+	public void onContact(Contact contact);
+
+	/**
+	 * Called for every LDAP entry that is known to be unchanged since the last sync.
+	 * 
+	 * @param dn
+	 *            The DN of the entry or {@code null} if only the unique id is known
+	 * @param uuid
+	 *            The unique id of the entry or {@code null} if only the DN is known
+	 */
+	public void onContactUnchanged(String dn, String uuid);
+
+	/**
+	 * Called for every LDAP entry that was deleted since the last sync.
+	 * 
+	 * @param dn
+	 *            The DN of the entry or {@code null} if only the unique id is known
+	 * @param uuid
+	 *            The unique id of the entry or {@code null} if only the DN is known
+	 */
+	public void onContactDeleted(String dn, String uuid);
+
+	/**
+	 * Checks whether an LDAP entry may have changed since it was stored, e.g. to decide whether its photo has to be retrieved.
+	 * 
+	 * @param dn
+	 *            The DN of the entry
+	 * @param uuid
+	 *            The unique id of the entry or {@code null} if unknown, used to find entries that were renamed since they were stored
+	 * @param modifyTimestamp
+	 *            The modifyTimestamp of the entry or {@code null} if unknown
+	 * @return {@code false} if the contact is stored with the same modifyTimestamp, {@code true} otherwise
+	 */
+	public boolean isModified(String dn, String uuid, String modifyTimestamp);
+}
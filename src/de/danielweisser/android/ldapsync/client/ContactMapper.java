@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.ReadOnlyEntry;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Converts LDAP entries into contacts. The attribute mapping of the account is resolved once into a table from attribute name to contact fields, so
+ * every entry is converted with a single pass over its attributes and only the mapped values are copied. Values that repeat across many entries (first
+ * name and the parts of the address except the street) are shared with a {@link ValueDictionary}, an address is only allocated if the entry has one.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class ContactMapper {
+
+	private static final String TAG = "ContactMapper";
+
+	/**
+	 * The mapping keys in the order of the field indexes below.
+	 */
+	private static final String[] FIELDS = { Contact.FIRSTNAME, Contact.LASTNAME, Contact.TELEPHONE, Contact.MOBILE, Contact.HOMEPHONE, Contact.MAIL,
+			Contact.PHOTO, Contact.STREET, Contact.CITY, Contact.STATE, Contact.ZIP, Contact.COUNTRY, Contact.THUMBNAIL };
+
+	private static final int FIRSTNAME = 0;
+	private static final int LASTNAME = 1;
+	private static final int TELEPHONE = 2;
+	private static final int MOBILE = 3;
+	private static final int HOMEPHONE = 4;
+	private static final int MAIL = 5;
+	private static final int PHOTO = 6;
+	private static final int STREET = 7;
+	private static final int CITY = 8;
+	private static final int STATE = 9;
+	private static final int ZIP = 10;
+	private static final int COUNTRY = 11;
+	private static final int THUMBNAIL = 12;
+
+	/**
+	 * The field indexes by lower case attribute name. An attribute may be mapped to several fields.
+	 */
+	private final HashMap<String, int[]> fields = new HashMap<String, int[]>();
+
+	private final AtomicInteger parseFailures = new AtomicInteger();
+
+	private final ValueDictionary dictionary;
+
+	/**
+	 * @param mappingBundle
+	 *            Mapping bundle for the LDAP attribute names
+	 */
+	public ContactMapper(Bundle mappingBundle) {
+		this(mappingBundle, new ValueDictionary());
+	}
+
+	/**
+	 * @param mappingBundle
+	 *            Mapping bundle for the LDAP attribute names
+	 * @param dictionary
+	 *            The dictionary of repeated values, may be shared by several mappers
+	 */
+	ContactMapper(Bundle mappingBundle, ValueDictionary dictionary) {
+		this.dictionary = dictionary;
+		for (int i = 0; i < FIELDS.length; i++) {
+			final String attribute = mappingBundle.getString(FIELDS[i]);
+			if (TextUtils.isEmpty(attribute)) {
+				continue;
+			}
+			final String key = StaticUtils.toLowerCase(attribute);
+			final int[] mapped = fields.get(key);
+			if (mapped == null) {
+				fields.put(key, new int[] { i });
+			} else {
+				final int[] extended = new int[mapped.length + 1];
+				System.arraycopy(mapped, 0, extended, 0, mapped.length);
+				extended[mapped.length] = i;
+				fields.put(key, extended);
+			}
+		}
+	}
+
+	/**
+	 * Creates a contact from the provided LDAP entry. The photo is returned as stored in the directory (the thumbnail photo if there is one), it is
+	 * converted by the {@link PhotoPipeline}.
+	 *
+	 * @param user
+	 *            The LDAP entry containing the user data
+	 * @return The new contact or {@code null} if the entry has no first or last name
+	 */
+	public Contact map(ReadOnlyEntry user) {
+		final String[] values = new String[FIELDS.length];
+		String[] emails = null;
+		byte[] photo = null;
+		byte[] thumbnail = null;
+		try {
+			for (Attribute a : user.getAttributes()) {
+				final int[] mapped = fields.get(StaticUtils.toLowerCase(a.getName()));
+				if (mapped == null) {
+					continue;
+				}
+				for (int field : mapped) {
+					if (field == MAIL) {
+						emails = a.getValues();
+					} else if (field == PHOTO) {
+						photo = a.getValueByteArray();
+					} else if (field == THUMBNAIL) {
+						thumbnail = a.getValueByteArray();
+					} else {
+						values[field] = a.getValue();
+					}
+				}
+			}
+		} catch (final Exception ex) {
+			parseFailures.incrementAndGet();
+			Log.i(TAG, "Error parsing LDAP user object" + ex.toString());
+		}
+		if (values[FIRSTNAME] == null || values[LASTNAME] == null) {
+			return null;
+		}
+
+		final Contact c = new Contact();
+		c.setDn(user.getDN());
+		c.setFirstName(dictionary.intern(values[FIRSTNAME]));
+		c.setLastName(values[LASTNAME]);
+		c.setWorkPhone(values[TELEPHONE]);
+		c.setCellWorkPhone(values[MOBILE]);
+		c.setHomePhone(values[HOMEPHONE]);
+		c.setEmails(emails);
+		c.setImage(thumbnail != null ? thumbnail : photo);
+		if (values[STREET] != null || values[CITY] != null || values[STATE] != null || values[ZIP] != null || values[COUNTRY] != null) {
+			final Address a = new Address();
+			a.setStreet(values[STREET]);
+			a.setCity(dictionary.intern(values[CITY]));
+			a.setState(dictionary.intern(values[STATE]));
+			a.setZip(dictionary.intern(values[ZIP]));
+			a.setCountry(dictionary.intern(values[COUNTRY]));
+			c.setAddress(a);
+		}
+		return c;
+	}
+
+	/**
+	 * @return The number of entries that could not be parsed completely
+	 */
+	public int getParseFailures() {
+		return parseFailures.get();
+	}
+}
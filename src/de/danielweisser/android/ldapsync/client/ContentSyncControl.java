@@ -0,0 +1,275 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.unboundid.asn1.ASN1Boolean;
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1Enumerated;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.IntermediateResponse;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * The sync request control of the LDAP content synchronization operation (syncrepl) as defined in RFC 4533, together with the decoding of the sync state
+ * control, the sync done control and the sync info message. The mobile edition of the UnboundID LDAP SDK does not contain the controls package, so the
+ * controls are encoded and decoded here. Only the refreshOnly mode is supported.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class ContentSyncControl extends Control {
+
+	public static final String SYNC_REQUEST_OID = "1.3.6.1.4.1.4203.1.9.1.1";
+	public static final String SYNC_STATE_OID = "1.3.6.1.4.1.4203.1.9.1.2";
+	public static final String SYNC_DONE_OID = "1.3.6.1.4.1.4203.1.9.1.3";
+	public static final String SYNC_INFO_OID = "1.3.6.1.4.1.4203.1.9.1.4";
+
+	/**
+	 * Result code e-syncRefreshRequired: the cookie is not valid any more, a full refresh is necessary.
+	 */
+	public static final int SYNC_REFRESH_REQUIRED = 4096;
+
+	public static final int STATE_PRESENT = 0;
+	public static final int STATE_ADD = 1;
+	public static final int STATE_MODIFY = 2;
+	public static final int STATE_DELETE = 3;
+
+	private static final int MODE_REFRESH_ONLY = 1;
+
+	private static final byte TYPE_NEW_COOKIE = (byte) 0x80;
+	private static final byte TYPE_REFRESH_DELETE = (byte) 0xA1;
+	private static final byte TYPE_REFRESH_PRESENT = (byte) 0xA2;
+	private static final byte TYPE_SYNC_ID_SET = (byte) 0xA3;
+
+	private static final long serialVersionUID = -1725342385624591237L;
+
+	/**
+	 * Creates a new sync request control for the refreshOnly mode.
+	 * 
+	 * @param cookie
+	 *            The cookie of the last sync or {@code null} for an initial content refresh.
+	 */
+	public ContentSyncControl(byte[] cookie) {
+		super(SYNC_REQUEST_OID, true, encodeValue(cookie));
+	}
+
+	private static ASN1OctetString encodeValue(byte[] cookie) {
+		final ArrayList<ASN1Element> elements = new ArrayList<ASN1Element>(2);
+		elements.add(new ASN1Enumerated(MODE_REFRESH_ONLY));
+		if (cookie != null) {
+			elements.add(new ASN1OctetString(cookie));
+		}
+		return new ASN1OctetString(new ASN1Sequence(elements).encode());
+	}
+
+	/**
+	 * The decoded value of a sync state control that is attached to every entry of a content synchronization.
+	 */
+	public static final class EntryState {
+		private final int state;
+		private final String entryUUID;
+		private final byte[] cookie;
+
+		private EntryState(int state, String entryUUID, byte[] cookie) {
+			this.state = state;
+			this.entryUUID = entryUUID;
+			this.cookie = cookie;
+		}
+
+		/**
+		 * @return One of {@link ContentSyncControl#STATE_PRESENT}, {@link ContentSyncControl#STATE_ADD}, {@link ContentSyncControl#STATE_MODIFY} or
+		 *         {@link ContentSyncControl#STATE_DELETE}
+		 */
+		public int getState() {
+			return state;
+		}
+
+		/**
+		 * @return The entryUUID of the entry as hex string
+		 */
+		public String getEntryUUID() {
+			return entryUUID;
+		}
+
+		public byte[] getCookie() {
+			return cookie;
+		}
+	}
+
+	/**
+	 * The decoded value of a sync info message.
+	 */
+	public static final class SyncInfo {
+		private final byte[] cookie;
+		private final boolean refreshPresent;
+		private final boolean refreshDeletes;
+		private final List<String> entryUUIDs;
+
+		private SyncInfo(byte[] cookie, boolean refreshPresent, boolean refreshDeletes, List<String> entryUUIDs) {
+			this.cookie = cookie;
+			this.refreshPresent = refreshPresent;
+			this.refreshDeletes = refreshDeletes;
+			this.entryUUIDs = entryUUIDs;
+		}
+
+		/**
+		 * @return The new cookie or {@code null} if the message does not contain a cookie.
+		 */
+		public byte[] getCookie() {
+			return cookie;
+		}
+
+		/**
+		 * @return {@code true} if the message belongs to the present phase of the refresh.
+		 */
+		public boolean isRefreshPresent() {
+			return refreshPresent;
+		}
+
+		/**
+		 * @return {@code true} if the entryUUIDs of the message are deleted entries, {@code false} if they are present entries.
+		 */
+		public boolean isRefreshDeletes() {
+			return refreshDeletes;
+		}
+
+		/**
+		 * @return The entryUUIDs of a syncIdSet message as hex strings, an empty list for all other messages.
+		 */
+		public List<String> getEntryUUIDs() {
+			return entryUUIDs;
+		}
+	}
+
+	/**
+	 * Decodes the sync state control of a search result entry.
+	 * 
+	 * @param c
+	 *            The sync state control
+	 * @return The decoded sync state
+	 * @throws LDAPException
+	 *             If the control cannot be decoded.
+	 */
+	public static EntryState decodeEntryState(Control c) throws LDAPException {
+		try {
+			final ASN1Element[] elements = ASN1Sequence.decodeAsSequence(c.getValue().getValue()).elements();
+			final int state = ASN1Enumerated.decodeAsEnumerated(elements[0]).intValue();
+			final String entryUUID = StaticUtils.toHex(ASN1OctetString.decodeAsOctetString(elements[1]).getValue());
+			final byte[] cookie = elements.length > 2 ? ASN1OctetString.decodeAsOctetString(elements[2]).getValue() : null;
+			return new EntryState(state, entryUUID, cookie);
+		} catch (ASN1Exception e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode sync state control", e);
+		} catch (RuntimeException e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode sync state control", e);
+		}
+	}
+
+	/**
+	 * Decodes the sync done control of the result of a content synchronization.
+	 * 
+	 * @param result
+	 *            The search result
+	 * @return A sync info with the new cookie and the refreshDeletes flag or {@code null} if the result does not contain a sync done control.
+	 * @throws LDAPException
+	 *             If the control cannot be decoded.
+	 */
+	public static SyncInfo decodeSyncDone(LDAPResult result) throws LDAPException {
+		final Control c = result.getResponseControl(SYNC_DONE_OID);
+		if (c == null) {
+			return null;
+		}
+		if (!c.hasValue()) {
+			return new SyncInfo(null, false, false, new ArrayList<String>(0));
+		}
+		try {
+			final ASN1Element[] elements = ASN1Sequence.decodeAsSequence(c.getValue().getValue()).elements();
+			return new SyncInfo(decodeCookie(elements), false, decodeFlag(elements), new ArrayList<String>(0));
+		} catch (ASN1Exception e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode sync done control", e);
+		}
+	}
+
+	/**
+	 * Decodes a sync info intermediate response.
+	 * 
+	 * @param response
+	 *            The intermediate response
+	 * @return The decoded sync info or {@code null} if the response is no sync info message.
+	 * @throws LDAPException
+	 *             If the message cannot be decoded.
+	 */
+	public static SyncInfo decodeSyncInfo(IntermediateResponse response) throws LDAPException {
+		if (!SYNC_INFO_OID.equals(response.getOID()) || response.getValue() == null) {
+			return null;
+		}
+		try {
+			final ASN1Element info = ASN1Element.decode(response.getValue().getValue());
+			switch (info.getType()) {
+			case TYPE_NEW_COOKIE:
+				return new SyncInfo(info.getValue(), false, false, new ArrayList<String>(0));
+			case TYPE_REFRESH_DELETE:
+				return new SyncInfo(decodeCookie(ASN1Sequence.decodeAsSequence(info).elements()), false, true, new ArrayList<String>(0));
+			case TYPE_REFRESH_PRESENT:
+				return new SyncInfo(decodeCookie(ASN1Sequence.decodeAsSequence(info).elements()), true, false, new ArrayList<String>(0));
+			case TYPE_SYNC_ID_SET:
+				final ASN1Element[] elements = ASN1Sequence.decodeAsSequence(info).elements();
+				final boolean refreshDeletes = decodeFlag(elements);
+				final ArrayList<String> entryUUIDs = new ArrayList<String>();
+				for (ASN1Element uuid : ASN1Sequence.decodeAsSequence(elements[elements.length - 1]).elements()) {
+					entryUUIDs.add(StaticUtils.toHex(uuid.getValue()));
+				}
+				return new SyncInfo(decodeCookie(elements), !refreshDeletes, refreshDeletes, entryUUIDs);
+			default:
+				return null;
+			}
+		} catch (ASN1Exception e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode sync info message", e);
+		}
+	}
+
+	/**
+	 * @return The optional cookie (OCTET STRING) of a decoded sequence.
+	 */
+	private static byte[] decodeCookie(ASN1Element[] elements) {
+		for (ASN1Element e : elements) {
+			if (e.getType() == 0x04) {
+				return e.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The optional flag (BOOLEAN, default FALSE) of a decoded sequence.
+	 */
+	private static boolean decodeFlag(ASN1Element[] elements) throws ASN1Exception {
+		for (ASN1Element e : elements) {
+			if (e.getType() == 0x01) {
+				return ASN1Boolean.decodeAsBoolean(e).booleanValue();
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1Integer;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * The DirSync control of Active Directory. The mobile edition of the UnboundID LDAP SDK does not contain the controls package, so the control is encoded
+ * and decoded here.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class DirSyncControl extends Control {
+
+	/**
+	 * The OID of the DirSync control.
+	 */
+	public static final String DIRSYNC_OID = "1.2.840.113556.1.4.841";
+
+	/**
+	 * Only return objects and attributes the user has read access to, so no "Replicating Directory Changes" right is needed.
+	 */
+	private static final int FLAG_OBJECT_SECURITY = 0x00000001;
+
+	/**
+	 * The maximum number of bytes the server should return in a single response.
+	 */
+	private static final int MAX_BYTES = 1024 * 1024;
+
+	private static final long serialVersionUID = -8203624960328915074L;
+
+	/**
+	 * Creates a new DirSync request control.
+	 * 
+	 * @param cookie
+	 *            The cookie of the last response, {@code null} to retrieve all objects.
+	 */
+	public DirSyncControl(byte[] cookie) {
+		super(DIRSYNC_OID, true, encodeValue(cookie));
+	}
+
+	private static ASN1OctetString encodeValue(byte[] cookie) {
+		final ASN1OctetString cookieElement = (cookie == null) ? new ASN1OctetString() : new ASN1OctetString(cookie);
+		return new ASN1OctetString(new ASN1Sequence(new ASN1Integer(FLAG_OBJECT_SECURITY), new ASN1Integer(MAX_BYTES), cookieElement).encode());
+	}
+
+	/**
+	 * Extracts the cookie from the DirSync response control of a search result.
+	 * 
+	 * @param result
+	 *            The result of a DirSync search
+	 * @return The cookie for the next search.
+	 * @throws LDAPException
+	 *             If the response control is missing or cannot be decoded.
+	 */
+	public static byte[] getCookie(LDAPResult result) throws LDAPException {
+		return ASN1OctetString.decodeAsOctetString(decodeResponse(result)[2]).getValue();
+	}
+
+	/**
+	 * @param result
+	 *            The result of a DirSync search
+	 * @return {@code true} if the server has more changes, that did not fit into the response.
+	 * @throws LDAPException
+	 *             If the response control is missing or cannot be decoded.
+	 */
+	public static boolean hasMoreResults(LDAPResult result) throws LDAPException {
+		try {
+			return ASN1Integer.decodeAsInteger(decodeResponse(result)[0]).intValue() != 0;
+		} catch (ASN1Exception e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode DirSync control", e);
+		}
+	}
+
+	private static ASN1Element[] decodeResponse(LDAPResult result) throws LDAPException {
+		final Control c = result.getResponseControl(DIRSYNC_OID);
+		if (c == null || !c.hasValue()) {
+			throw new LDAPException(ResultCode.CONTROL_NOT_FOUND, "No DirSync control in the search result");
+		}
+		try {
+			final ASN1Element[] elements = ASN1Sequence.decodeAsSequence(c.getValue().getValue()).elements();
+			if (elements.length < 3) {
+				throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode DirSync control");
+			}
+			return elements;
+		} catch (ASN1Exception e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode DirSync control", e);
+		}
+	}
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * A minimal DNS client for SRV lookups (RFC 2782). Android has no JNDI DNS provider, so the query is sent directly to the DNS servers of the device.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class DnsSrvResolver {
+
+	private static final String TAG = "DnsSrvResolver";
+
+	private static final int DNS_PORT = 53;
+	private static final int TIMEOUT_MILLIS = 3000;
+	private static final int TYPE_SRV = 33;
+	private static final int CLASS_IN = 1;
+
+	/**
+	 * The TC flag of the header: the response did not fit into a UDP datagram and has to be requested over TCP.
+	 */
+	private static final int FLAG_TRUNCATED = 0x0200;
+
+	/**
+	 * Maximum number of compression pointers followed in a name, so a pointer loop in a malformed response ends.
+	 */
+	private static final int MAX_POINTERS = 16;
+
+	/**
+	 * The resolver configuration, used if the DNS servers cannot be read from the system properties.
+	 */
+	private static final String RESOLV_CONF = "/etc/resolv.conf";
+
+	private static final Random RANDOM = new Random();
+
+	private DnsSrvResolver() {
+	}
+
+	/**
+	 * Looks up the SRV records of a service.
+	 *
+	 * @param name
+	 *            The name of the service, e.g. _ldap._tcp.example.com
+	 * @return The servers ordered by priority and, within a priority, randomly by weight, an empty list if the lookup failed or the response cannot be
+	 *         parsed
+	 */
+	static List<ServerAddress> lookup(String name) {
+		for (String dnsServer : getDnsServers()) {
+			byte[] response;
+			try {
+				final InetAddress address = InetAddress.getByName(dnsServer);
+				final int id = RANDOM.nextInt(0x10000);
+				final byte[] query = createQuery(id, name);
+				response = queryUdp(address, id, query);
+				if ((readShort(response, 2, response.length) & FLAG_TRUNCATED) != 0) {
+					Log.d(TAG, "Truncated response to the SRV lookup of " + name + ", repeating it over TCP");
+					response = queryTcp(address, id, query);
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "SRV lookup of " + name + " at " + dnsServer + " failed", e);
+				continue;
+			}
+			try {
+				return parse(response, response.length);
+			} catch (IOException e) {
+				Log.w(TAG, "Invalid response to the SRV lookup of " + name + " from " + dnsServer, e);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Invalid response to the SRV lookup of " + name + " from " + dnsServer, e);
+			}
+			break;
+		}
+		return new ArrayList<ServerAddress>(0);
+	}
+
+	/**
+	 * @return The DNS servers of the device. They are read from the system properties net.dns1 and net.dns2, which are not part of the public API,
+	 *         otherwise from {@value #RESOLV_CONF}, which most devices do not have. Newer Android versions may hide both, then SRV lookups are not
+	 *         possible.
+	 */
+	private static List<String> getDnsServers() {
+		final ArrayList<String> servers = new ArrayList<String>(2);
+		try {
+			final Method get = Class.forName("android.os.SystemProperties").getMethod("get", String.class);
+			for (String property : new String[] { "net.dns1", "net.dns2" }) {
+				final Object server = get.invoke(null, property);
+				if (server instanceof String && !TextUtils.isEmpty((String) server)) {
+					servers.add((String) server);
+				}
+			}
+		} catch (Exception e) {
+			Log.d(TAG, "Cannot read the DNS servers from the system properties", e);
+		} catch (LinkageError e) {
+			Log.d(TAG, "Cannot read the DNS servers from the system properties", e);
+		}
+		if (servers.isEmpty()) {
+			readResolvConf(servers);
+		}
+		if (servers.isEmpty()) {
+			Log.w(TAG, "No DNS server found in the system properties or in " + RESOLV_CONF
+					+ ", SRV entries cannot be resolved; enter the LDAP servers by name");
+		}
+		return servers;
+	}
+
+	private static void readResolvConf(List<String> servers) {
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(RESOLV_CONF));
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] values = line.trim().split("\\s+");
+				if (values.length >= 2 && values[0].equals("nameserver")) {
+					servers.add(values[1]);
+				}
+			}
+		} catch (IOException e) {
+			Log.d(TAG, "Cannot read " + RESOLV_CONF, e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private static byte[] createQuery(int id, String name) throws IOException {
+		final ByteArrayOutputStream request = new ByteArrayOutputStream(512);
+		writeShort(request, id);
+		writeShort(request, 0x0100); // recursion desired
+		writeShort(request, 1); // one question
+		writeShort(request, 0);
+		writeShort(request, 0);
+		writeShort(request, 0);
+		for (String label : name.split("\\.")) {
+			final byte[] bytes = label.getBytes("US-ASCII");
+			request.write(bytes.length);
+			request.write(bytes, 0, bytes.length);
+		}
+		request.write(0);
+		writeShort(request, TYPE_SRV);
+		writeShort(request, CLASS_IN);
+		return request.toByteArray();
+	}
+
+	private static byte[] queryUdp(InetAddress dnsServer, int id, byte[] query) throws IOException {
+		final byte[] response = new byte[1500];
+		final DatagramSocket socket = new DatagramSocket();
+		final DatagramPacket received = new DatagramPacket(response, response.length);
+		try {
+			socket.setSoTimeout(TIMEOUT_MILLIS);
+			socket.send(new DatagramPacket(query, query.length, dnsServer, DNS_PORT));
+			do {
+				socket.receive(received);
+			} while (received.getLength() < 12 || readShort(response, 0, received.getLength()) != id);
+		} finally {
+			socket.close();
+		}
+		final byte[] result = new byte[received.getLength()];
+		System.arraycopy(response, 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Sends the query over TCP, where each message is preceded by its length (RFC 1035, 4.2.2).
+	 */
+	private static byte[] queryTcp(InetAddress dnsServer, int id, byte[] query) throws IOException {
+		final Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(dnsServer, DNS_PORT), TIMEOUT_MILLIS);
+			socket.setSoTimeout(TIMEOUT_MILLIS);
+			final OutputStream out = socket.getOutputStream();
+			final byte[] message = new byte[query.length + 2];
+			message[0] = (byte) (query.length >> 8);
+			message[1] = (byte) query.length;
+			System.arraycopy(query, 0, message, 2, query.length);
+			out.write(message);
+			out.flush();
+			final DataInputStream in = new DataInputStream(socket.getInputStream());
+			final byte[] response = new byte[in.readUnsignedShort()];
+			in.readFully(response);
+			if (response.length < 12 || readShort(response, 0, response.length) != id) {
+				throw new IOException("Unexpected DNS response over TCP");
+			}
+			return response;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Parses the SRV records of a response. Every read is checked against the length of the response.
+	 *
+	 * @throws IOException
+	 *             If the server returned an error or the response is malformed
+	 */
+	private static List<ServerAddress> parse(final byte[] response, final int length) throws IOException {
+		final int flags = readShort(response, 2, length);
+		if ((flags & FLAG_TRUNCATED) != 0) {
+			throw new IOException("Truncated DNS response");
+		}
+		final int rcode = flags & 0x000F;
+		if (rcode != 0) {
+			throw new IOException("DNS error " + rcode);
+		}
+		final int questions = readShort(response, 4, length);
+		final int answers = readShort(response, 6, length);
+		int offset = 12;
+		for (int i = 0; i < questions; i++) {
+			offset = skipName(response, offset, length) + 4;
+		}
+		final ArrayList<SrvRecord> records = new ArrayList<SrvRecord>(Math.min(answers, 16));
+		for (int i = 0; i < answers && offset < length; i++) {
+			offset = skipName(response, offset, length);
+			final int type = readShort(response, offset, length);
+			final int dataLength = readShort(response, offset + 8, length);
+			final int data = offset + 10;
+			if (data + dataLength > length) {
+				throw new IOException("Truncated DNS response");
+			}
+			if (type == TYPE_SRV) {
+				final StringBuilder target = new StringBuilder();
+				readName(response, data + 6, length, target);
+				records.add(new SrvRecord(readShort(response, data, length), readShort(response, data + 2, length), new ServerAddress(target.toString(),
+						readShort(response, data + 4, length))));
+			}
+			offset = data + dataLength;
+		}
+		// Records of the same priority keep their order, so the ones with weight 0 can be moved to the front
+		Collections.sort(records, new Comparator<SrvRecord>() {
+			public int compare(SrvRecord a, SrvRecord b) {
+				return a.weight == 0 && b.weight != 0 ? -1 : a.weight != 0 && b.weight == 0 ? 1 : 0;
+			}
+		});
+		Collections.sort(records, new Comparator<SrvRecord>() {
+			public int compare(SrvRecord a, SrvRecord b) {
+				return a.priority - b.priority;
+			}
+		});
+		final ArrayList<ServerAddress> servers = new ArrayList<ServerAddress>(records.size());
+		int start = 0;
+		while (start < records.size()) {
+			int end = start + 1;
+			while (end < records.size() && records.get(end).priority == records.get(start).priority) {
+				end++;
+			}
+			orderByWeight(records.subList(start, end), servers);
+			start = end;
+		}
+		return servers;
+	}
+
+	/**
+	 * Orders the records of one priority by the weighted random selection of RFC 2782: a record is chosen with a probability proportional to its
+	 * weight among the records not chosen yet. The records with weight 0 come first in the list, so they have a small chance of being chosen first.
+	 */
+	private static void orderByWeight(List<SrvRecord> records, List<ServerAddress> servers) {
+		final ArrayList<SrvRecord> remaining = new ArrayList<SrvRecord>(records);
+		while (!remaining.isEmpty()) {
+			int total = 0;
+			for (SrvRecord r : remaining) {
+				total += r.weight;
+			}
+			final int selected = RANDOM.nextInt(total + 1);
+			int sum = 0;
+			int i = 0;
+			while (i < remaining.size() - 1 && (sum += remaining.get(i).weight) < selected) {
+				i++;
+			}
+			final SrvRecord r = remaining.remove(i);
+			// A target of "." means the service is not available
+			if (r.server.host.length() > 0) {
+				servers.add(r.server);
+			}
+		}
+	}
+
+	private static int skipName(byte[] b, int offset, int length) throws IOException {
+		while (true) {
+			final int len = readByte(b, offset, length);
+			if (len == 0) {
+				return offset + 1;
+			} else if ((len & 0xC0) == 0xC0) {
+				return offset + 2;
+			} else if ((len & 0xC0) != 0) {
+				throw new IOException("Invalid label at " + offset);
+			}
+			offset += len + 1;
+		}
+	}
+
+	private static void readName(byte[] b, int offset, int length, StringBuilder name) throws IOException {
+		int pointers = 0;
+		while (true) {
+			final int len = readByte(b, offset, length);
+			if (len == 0) {
+				return;
+			} else if ((len & 0xC0) == 0xC0) {
+				if (++pointers > MAX_POINTERS) {
+					throw new IOException("Too many compression pointers");
+				}
+				offset = ((len & 0x3F) << 8) | readByte(b, offset + 1, length);
+				continue;
+			} else if ((len & 0xC0) != 0) {
+				throw new IOException("Invalid label at " + offset);
+			}
+			if (offset + len >= length) {
+				throw new IOException("Truncated DNS response");
+			}
+			if (name.length() > 0) {
+				name.append('.');
+			}
+			for (int i = 1; i <= len; i++) {
+				name.append((char) b[offset + i]);
+			}
+			offset += len + 1;
+		}
+	}
+
+	private static int readByte(byte[] b, int offset, int length) throws IOException {
+		if (offset < 0 || offset >= length) {
+			throw new IOException("Truncated DNS response");
+		}
+		return b[offset] & 0xFF;
+	}
+
+	private static int readShort(byte[] b, int offset, int length) throws IOException {
+		return (readByte(b, offset, length) << 8) | readByte(b, offset + 1, length);
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write((value >> 8) & 0xFF);
+		out.write(value & 0xFF);
+	}
+
+	private static final class SrvRecord {
+		private final int priority;
+		private final int weight;
+		private final ServerAddress server;
+
+		private SrvRecord(int priority, int weight, ServerAddress server) {
+			this.priority = priority;
+			this.weight = weight;
+			this.server = server;
+		}
+	}
+}
@@ -17,6 +17,7 @@
 package de.danielweisser.android.ldapsync.client;
 
 import java.io.Serializable;
+import java.util.List;
 
 import javax.net.SocketFactory;
 
@@ -28,8 +29,6 @@ import com.unboundid.ldap.sdk.LDAPConnectionOptions;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
-import com.unboundid.util.ssl.SSLUtil;
-import com.unboundid.util.ssl.TrustAllTrustManager;
 
 /**
  * Encapsulates a LDAP directory server instance and provides methods to access the server. This is based on code from the UnboundID LDAP Client.
@@ -45,6 +44,9 @@ public final class LDAPServerInstance implements Serializable {
 	 */
 	private static final long serialVersionUID = -7633400003887348205L;
 
+	private static final int CONNECT_TIMEOUT = 30000;
+	private static final int FAILOVER_CONNECT_TIMEOUT = 10000;
+
 
 	/**
 	 * The encryption method (0 - no encryption, 1 - SSL, 2 - StartTLS)
@@ -52,7 +54,7 @@ public final class LDAPServerInstance implements Serializable {
 	private final int encryption;
 
 	/**
-	 * The host address of the LDAP server
+	 * The host addresses of the LDAP servers (host or host:port, separated by commas or spaces, _ldap._tcp.domain for DNS SRV lookups)
 	 */
 	private final String host;
 
@@ -71,11 +73,31 @@ public final class LDAPServerInstance implements Serializable {
 	 */
 	private final String bindPW;
 
+	/**
+	 * The initial page size for paged searches (0 - no paging).
+	 */
+	private final int pageSize;
+
+	/**
+	 * The page size of accounts that do not have a page size setting, e.g. accounts created before paging was supported.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	/**
+	 * The number of parallel searches a full search is split into (1 - no parallel searches).
+	 */
+	private final int shards;
+
+	/**
+	 * The servers of the host setting, resolved once per instance (i.e. once per sync), as the SRV lookups are not cached by the system.
+	 */
+	private transient List<ServerAddress> servers = null;
+
 	/**
 	 * Creates a new LDAP server instance with the provided information.
 	 * 
 	 * @param host
-	 *            The address of the server. It must not be {@code null}.
+	 *            The addresses of the servers in the order of preference. It must not be {@code null}.
 	 * @param port
 	 *            The port number for the server. It must be between 1 and 65535.
 	 * @param encryption
@@ -86,16 +108,62 @@ public final class LDAPServerInstance implements Serializable {
 	 *            The password to use to bind to the server. It may be {@code null} or empty if no authentication should be performed.
 	 */
 	public LDAPServerInstance(final String host, final int port, final int encryption, final String bindDN, final String bindPW) {
+		this(host, port, encryption, bindDN, bindPW, 0);
+	}
+
+	/**
+	 * Creates a new LDAP server instance with the provided information.
+	 * 
+	 * @param host
+	 *            The addresses of the servers in the order of preference. It must not be {@code null}.
+	 * @param port
+	 *            The port number for the server. It must be between 1 and 65535.
+	 * @param encryption
+	 *            The encryption method (0 - no encryption, 1 - SSL, 2 - StartTLS)
+	 * @param bindDN
+	 *            The DN to use to bind to the server. It may be {@code null} or empty if no authentication should be performed.
+	 * @param bindPW
+	 *            The password to use to bind to the server. It may be {@code null} or empty if no authentication should be performed.
+	 * @param pageSize
+	 *            The initial page size for paged searches. 0 disables paging.
+	 */
+	public LDAPServerInstance(final String host, final int port, final int encryption, final String bindDN, final String bindPW, final int pageSize) {
+		this(host, port, encryption, bindDN, bindPW, pageSize, 1);
+	}
+
+	/**
+	 * Creates a new LDAP server instance with the provided information.
+	 * 
+	 * @param host
+	 *            The addresses of the servers in the order of preference. It must not be {@code null}.
+	 * @param port
+	 *            The port number for the server. It must be between 1 and 65535.
+	 * @param encryption
+	 *            The encryption method (0 - no encryption, 1 - SSL, 2 - StartTLS)
+	 * @param bindDN
+	 *            The DN to use to bind to the server. It may be {@code null} or empty if no authentication should be performed.
+	 * @param bindPW
+	 *            The password to use to bind to the server. It may be {@code null} or empty if no authentication should be performed.
+	 * @param pageSize
+	 *            The initial page size for paged searches. 0 disables paging.
+	 * @param shards
+	 *            The number of parallel searches on separate connections. 1 disables parallel searches.
+	 */
+	public LDAPServerInstance(final String host, final int port, final int encryption, final String bindDN, final String bindPW, final int pageSize,
+			final int shards) {
 		this.host = host;
 		this.port = port;
 		this.encryption = encryption;
 
 		this.bindDN = (bindDN == null) || (bindDN.length() == 0) ? null : bindDN;
 		this.bindPW = (bindPW == null) || (bindPW.length() == 0) ? null : bindPW;
+		this.pageSize = pageSize < 0 ? 0 : pageSize;
+		this.shards = shards < 1 ? 1 : shards;
 	}
 
 	/**
-	 * Retrieves an LDAP connection that may be used to communicate with the LDAP server.
+	 * Retrieves an LDAP connection that may be used to communicate with the LDAP server. An idle connection to the server is reused if possible. The
+	 * connection has to be returned with {@link #releaseConnection(LDAPConnection)} or {@link #releaseDefunctConnection(LDAPConnection)}.
 	 * 
 	 * @return An LDAP connection that may be used to communicate with the LDAP server.
 	 * 
@@ -103,12 +171,114 @@ public final class LDAPServerInstance implements Serializable {
 	 *             If a problem occurs while attempting to establish the connection.
 	 */
 	public LDAPConnection getConnection() throws LDAPException {
-		Log.d(TAG, "Trying to connect to: " + toString());
+		final LDAPConnection conn = getPool().take(bindDN, bindPW, false);
+		return (conn != null) ? conn : createConnection();
+	}
+
+	/**
+	 * Retrieves an LDAP connection like {@link #getConnection()}, that was bound with the credentials of the instance just now. A pooled connection is
+	 * bound again, so credentials that the server rejects by now are not accepted.
+	 * 
+	 * @return An LDAP connection that may be used to communicate with the LDAP server.
+	 * 
+	 * @throws LDAPException
+	 *             If a problem occurs while attempting to establish the connection or the credentials are rejected.
+	 */
+	public LDAPConnection getAuthenticatedConnection() throws LDAPException {
+		final LDAPConnection conn = getPool().take(bindDN, bindPW, true);
+		return (conn != null) ? conn : createConnection();
+	}
+
+	/**
+	 * Returns a connection obtained by {@link #getConnection()}, so it can be reused.
+	 * 
+	 * @param conn
+	 *            The connection
+	 */
+	public void releaseConnection(LDAPConnection conn) {
+		getPool().release(conn, bindDN, bindPW);
+	}
+
+	/**
+	 * Closes a connection obtained by {@link #getConnection()} after an error, as it may not be usable any more.
+	 * 
+	 * @param conn
+	 *            The connection
+	 */
+	public void releaseDefunctConnection(LDAPConnection conn) {
+		conn.close();
+	}
+
+	private ConnectionPool getPool() {
+		return ConnectionPool.getPool(host + ":" + port + "/" + encryption);
+	}
+
+	private ServerStatistics getStatistics() {
+		return ServerStatistics.get(host + ":" + port + "/" + encryption);
+	}
+
+	/**
+	 * Restores the connect statistics of the servers, see {@link ServerStatistics}.
+	 * 
+	 * @param stored
+	 *            The statistics as returned by {@link #saveStatistics()}
+	 */
+	public void loadStatistics(String stored) {
+		getStatistics().load(stored);
+	}
+
+	/**
+	 * @return The connect statistics of the servers of this instance as string
+	 */
+	public String saveStatistics() {
+		return getStatistics().save(getServers());
+	}
+
+	/**
+	 * Connects to the servers of the instance in the order given by {@link ServerStatistics}, until a connection can be established. A server that cannot
+	 * be reached is skipped for a cool-down period by following attempts.
+	 */
+	private LDAPConnection createConnection() throws LDAPException {
+		final ServerStatistics statistics = getStatistics();
+		final List<ServerAddress> servers = statistics.order(getServers());
+		if (servers.isEmpty()) {
+			throw new LDAPException(ResultCode.CONNECT_ERROR, "No LDAP server found for " + host);
+		}
+		// Fail over to the next server quickly, if there is one
+		final int connectTimeout = (servers.size() > 1) ? FAILOVER_CONNECT_TIMEOUT : CONNECT_TIMEOUT;
+		LDAPException lastException = null;
+		for (ServerAddress server : servers) {
+			final long start = System.currentTimeMillis();
+			try {
+				final LDAPConnection conn = createConnection(server, connectTimeout);
+				statistics.connectSucceeded(server, System.currentTimeMillis() - start);
+				return conn;
+			} catch (LDAPException le) {
+				if (le.getResultCode() == ResultCode.INVALID_CREDENTIALS) {
+					// The other servers will reject the credentials as well
+					throw le;
+				}
+				statistics.connectFailed(server);
+				lastException = le;
+			}
+		}
+		throw lastException;
+	}
+
+	private synchronized List<ServerAddress> getServers() {
+		if (servers == null || servers.isEmpty()) {
+			// Resolved again if the lookup failed
+			servers = ServerAddress.parse(host, port, usesSSL());
+		}
+		return servers;
+	}
+
+	private LDAPConnection createConnection(final ServerAddress server, final int connectTimeout) throws LDAPException {
+		Log.d(TAG, "Trying to connect to: " + server + " " + toString());
 		SocketFactory socketFactory = null;
 		if (usesSSL()) {
-			final SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
 			try {
-				socketFactory = sslUtil.createSSLSocketFactory();
+				socketFactory = SSLContextCache.getSocketFactory(server.toString());
 			} catch (Exception e) {
 				Log.e(TAG, "getConnection", e);
 				throw new LDAPException(ResultCode.LOCAL_ERROR, "Cannot initialize SSL", e);
@@ -117,16 +287,15 @@ public final class LDAPServerInstance implements Serializable {
 
 		final LDAPConnectionOptions options = new LDAPConnectionOptions();
 		options.setAutoReconnect(true);
-		options.setConnectTimeoutMillis(30000);
+		options.setConnectTimeoutMillis(connectTimeout);
 		options.setFollowReferrals(false);
 		options.setMaxMessageSize(0);
 
-		final LDAPConnection conn = new LDAPConnection(socketFactory, options, host, port);
+		final LDAPConnection conn = new LDAPConnection(socketFactory, options, server.host, server.port);
 
 		if (usesStartTLS()) {
-			final SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
 			try {
-				final ExtendedResult r = conn.processExtendedOperation(new StartTLSExtendedRequest(sslUtil.createSSLContext()));
+				final ExtendedResult r = conn.processExtendedOperation(new StartTLSExtendedRequest(SSLContextCache.getSSLContext(server.toString())));
 				if (r.getResultCode() != ResultCode.SUCCESS) {
 					throw new LDAPException(r);
 				}
@@ -182,4 +351,20 @@ public final class LDAPServerInstance implements Serializable {
 	public boolean usesStartTLS() {
 		return encryption == 2;
 	}
+
+	public boolean usesPaging() {
+		return pageSize > 0;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public boolean usesShards() {
+		return shards > 1;
+	}
+
+	public int getShards() {
+		return shards;
+	}
 }
@@ -17,8 +17,16 @@
 package de.danielweisser.android.ldapsync.client;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -27,18 +35,30 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.IntermediateResponse;
+import com.unboundid.ldap.sdk.IntermediateResponseListener;
 import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
 import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
 import com.unboundid.ldap.sdk.SearchScope;
 
 import de.danielweisser.android.ldapsync.R;
 import de.danielweisser.android.ldapsync.authenticator.LDAPAuthenticatorActivity;
 import de.danielweisser.android.ldapsync.syncadapter.SyncService;
+import de.danielweisser.android.ldapsync.syncadapter.SyncState;
 
 /**
  * Provides utility methods for communicating with the LDAP server.
@@ -49,6 +69,14 @@ public class LDAPUtilities {
 	
 	private static final String TAG = "LDAPUtilities";
 
+	static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+	private static final String CREATE_TIMESTAMP = "createTimestamp";
+
+	/**
+	 * Maximum number of threads that convert entries into contacts.
+	 */
+	private static final int MAX_CONVERTERS = 4;
+
 	/**
 	 * Executes the network requests on a separate thread.
 	 * 
@@ -105,54 +133,785 @@ public class LDAPUtilities {
 	 *            The search filter
 	 * @param mappingBundle
 	 *            A bundle of all LDAP attributes that are queried
-	 * @param mLastUpdated
-	 *            Date of the last update
 	 * @param context
 	 *            The caller Activity's context
 	 * @return List of all LDAP contacts
 	 */
 	public static List<Contact> fetchContacts(final LDAPServerInstance ldapServer, final String baseDN, final String searchFilter, final Bundle mappingBundle,
-			final Date mLastUpdated, final Context context) {
+			final Context context) {
 		final ArrayList<Contact> friendList = new ArrayList<Contact>();
+		final boolean success = fetchContacts(ldapServer, baseDN, searchFilter, mappingBundle, null, context, new ContactListener() {
+			public void onContact(Contact contact) {
+				friendList.add(contact);
+			}
+
+			public void onContactUnchanged(String dn, String uuid) {
+				// Only sent by a content synchronization
+			}
+
+			public void onContactDeleted(String dn, String uuid) {
+				// Only sent by a content synchronization
+			}
+
+			public boolean isModified(String dn, String uuid, String modifyTimestamp) {
+				return true;
+			}
+		});
+		return success ? friendList : null;
+	}
+
+	/**
+	 * Obtains all contacts from the LDAP Server and streams them to the given listener. Every entry is converted to a {@link Contact} and handed over as
+	 * soon as it is returned by the server, so neither the complete search result nor the complete list of contacts is kept in memory.
+	 * 
+	 * If the server supports the content synchronization operation (RFC 4533) and a sync state is given, the changes since the cookie of the last sync
+	 * are retrieved with a refreshOnly search. Unchanged and deleted entries are reported to the listener by their DN or entryUUID. Active Directory
+	 * servers are synchronized with DirSync or uSNChanged, see {@link ActiveDirectorySync}.
+	 * 
+	 * Otherwise, if the sync state allows an incremental sync, only the entries that were created or modified since the high-water mark of the last sync
+	 * are retrieved. The high-water mark of the sync state is raised to the newest modifyTimestamp/createTimestamp of the returned entries.
+	 * 
+	 * The sync state records whether the result was complete, i.e. whether contacts that were not reported may be deleted.
+	 * 
+	 * The photos are converted by a {@link PhotoPipeline} while the search continues.
+	 * 
+	 * @param ldapServer
+	 *            The LDAP server data
+	 * @param baseDN
+	 *            The baseDN that will be used for the search
+	 * @param searchFilter
+	 *            The search filter
+	 * @param mappingBundle
+	 *            A bundle of all LDAP attributes that are queried
+	 * @param syncState
+	 *            The sync state of the account, may be {@code null} for a full sync without high-water mark
+	 * @param context
+	 *            The caller Activity's context
+	 * @param listener
+	 *            The listener that receives the contacts
+	 * @return {@code true} if the search completed successfully, {@code false} otherwise
+	 */
+	public static boolean fetchContacts(final LDAPServerInstance ldapServer, final String baseDN, final String searchFilter, final Bundle mappingBundle,
+			final SyncState syncState, final Context context, final ContactListener listener) {
+		final PhotoPipeline photoPipeline = new PhotoPipeline(listener, (context != null) ? PhotoCache.getInstance(context) : null);
+		try {
+			if (fetchEntries(ldapServer, baseDN, searchFilter, mappingBundle, syncState, context, photoPipeline)) {
+				photoPipeline.finish();
+				return true;
+			}
+			return false;
+		} finally {
+			photoPipeline.close();
+		}
+	}
+
+	private static boolean fetchEntries(final LDAPServerInstance ldapServer, final String baseDN, final String searchFilter, final Bundle mappingBundle,
+			final SyncState syncState, final Context context, final ContactListener listener) {
 		LDAPConnection connection = null;
+		PhotoFetcher photoFetcher = null;
+		ContactSearchListener searchListener = null;
 		try {
 			connection = ldapServer.getConnection();
-			SearchResult searchResult = connection.search(baseDN, SearchScope.SUB, searchFilter, getUsedAttributes(mappingBundle));
-			Log.i(TAG, searchResult.getEntryCount() + " entries returned.");
+			final String[] attributes = getUsedAttributes(mappingBundle, MODIFY_TIMESTAMP, CREATE_TIMESTAMP);
+			final RootDSE rootDSE = (syncState != null) ? ConnectionPool.getRootDSE(connection) : null;
+			if (rootDSE != null && rootDSE.supportsControl(ContentSyncControl.SYNC_REQUEST_OID)) {
+				if (fetchContentSync(connection, baseDN, searchFilter, attributes, mappingBundle, syncState, listener)) {
+					return true;
+				}
+				Log.i(TAG, "Content synchronization not possible, using timestamps");
+			} else if (ActiveDirectorySync.isActiveDirectory(rootDSE)) {
+				if (new ActiveDirectorySync(connection, ldapServer.getPageSize(), baseDN, searchFilter, attributes, mappingBundle, syncState, listener)
+						.fetchContacts()) {
+					return true;
+				}
+				Log.i(TAG, "Active Directory sync not possible, using timestamps");
+			}
+
+			String filter = searchFilter;
+			final boolean incremental = syncState != null && syncState.isIncremental();
+			if (incremental) {
+				filter = getIncrementalFilter(searchFilter, syncState.getHighWaterMark());
+				Log.i(TAG, "Incremental sync with filter " + filter);
+			}
+			if (syncState != null) {
+				syncState.setCompleteResult(!incremental);
+			}
 
-			for (SearchResultEntry e : searchResult.getSearchEntries()) {
-				Contact u = Contact.valueOf(e, mappingBundle);
-				if (u != null) {
-					friendList.add(u);
+			// Two-phase fetch: the photos are only retrieved for new or changed entries
+			final ArrayList<String> photoAttributes = new ArrayList<String>(2);
+			String[] textAttributes = attributes;
+			for (String key : new String[] { Contact.THUMBNAIL, Contact.PHOTO }) {
+				final String photoAttribute = mappingBundle.getString(key);
+				if (!TextUtils.isEmpty(photoAttribute)) {
+					photoAttributes.add(photoAttribute);
+					textAttributes = removeAttribute(textAttributes, photoAttribute);
 				}
 			}
+			ContactListener firstPhaseListener = listener;
+			if (!photoAttributes.isEmpty()) {
+				photoFetcher = new PhotoFetcher(ldapServer, photoAttributes.toArray(new String[photoAttributes.size()]), listener);
+				firstPhaseListener = photoFetcher;
+			}
+
+			final int converters = Math.min(MAX_CONVERTERS, Runtime.getRuntime().availableProcessors());
+			searchListener = (converters > 1) ? new ParallelContactSearchListener(mappingBundle, syncState, firstPhaseListener, converters)
+					: new ContactSearchListener(mappingBundle, syncState, firstPhaseListener);
+			final String shardAttribute = mappingBundle.getString(Contact.LASTNAME);
+			if (ldapServer.usesShards() && !TextUtils.isEmpty(shardAttribute)) {
+				fetchSharded(ldapServer, baseDN, filter, textAttributes, shardAttribute, searchListener);
+			} else if (ldapServer.usesPaging() && supportsControl(connection, SimplePagedResultsControl.PAGED_RESULTS_OID)) {
+				fetchPaged(connection, ldapServer.getPageSize(), baseDN, filter, textAttributes, searchListener);
+			} else {
+				SearchResult searchResult = connection.search(searchListener, baseDN, SearchScope.SUB, filter, textAttributes);
+				Log.i(TAG, searchResult.getEntryCount() + " entries returned.");
+			}
+			searchListener.finish();
+			if (photoFetcher != null) {
+				photoFetcher.finish();
+			}
 		} catch (LDAPException e) {
 			Log.v(TAG, "LDAPException on fetching contacts", e);
-			NotificationManager mNotificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-			int icon = R.drawable.icon;
-			CharSequence tickerText = "Error on LDAP Sync";
-			Notification notification = new Notification(icon, tickerText, System.currentTimeMillis());
-			Intent notificationIntent = new Intent(context, SyncService.class);
-			PendingIntent contentIntent = PendingIntent.getService(context, 0, notificationIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-			notification.setLatestEventInfo(context, tickerText, e.getMessage().replace("\\n", " "), contentIntent);
-			notification.flags = Notification.FLAG_AUTO_CANCEL;
-			mNotificationManager.notify(0, notification);
-			return null;
+			if (connection != null) {
+				ldapServer.releaseDefunctConnection(connection);
+				connection = null;
+			}
+			notifyError(context, e);
+			return false;
 		} finally {
+			if (searchListener != null) {
+				searchListener.close();
+			}
+			if (photoFetcher != null) {
+				photoFetcher.close();
+			}
 			if (connection != null) {
-				connection.close();
+				ldapServer.releaseConnection(connection);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Retrieves the changes since the last sync with a refreshOnly content synchronization (RFC 4533). If the server requires a full refresh, the cookie
+	 * is dropped and the initial content is retrieved. The new cookie is stored in the sync state.
+	 * 
+	 * @param connection
+	 *            An established connection to the LDAP server
+	 * @param baseDN
+	 *            The baseDN that will be used for the search
+	 * @param searchFilter
+	 *            The search filter
+	 * @param attributes
+	 *            The attributes to retrieve
+	 * @param mappingBundle
+	 *            A bundle of all LDAP attributes that are queried
+	 * @param syncState
+	 *            The sync state of the account
+	 * @param listener
+	 *            The listener that receives the contacts
+	 * @return {@code false} if the server rejected the content synchronization before any entry was returned, {@code true} if the synchronization was
+	 *         successful
+	 * @throws LDAPException
+	 *             If the synchronization failed after entries were returned
+	 */
+	private static boolean fetchContentSync(final LDAPConnection connection, final String baseDN, final String searchFilter, final String[] attributes,
+			final Bundle mappingBundle, final SyncState syncState, final ContactListener listener) throws LDAPException {
+		byte[] cookie = syncState.getSyncCookie();
+		while (true) {
+			final ContentSyncListener syncListener = new ContentSyncListener(mappingBundle, syncState, listener);
+			final SearchRequest request = new SearchRequest(syncListener, baseDN, SearchScope.SUB, searchFilter, attributes);
+			request.addControl(new ContentSyncControl(cookie));
+			request.setIntermediateResponseListener(syncListener);
+			try {
+				final SearchResult searchResult = connection.search(request);
+				syncListener.checkError();
+				final ContentSyncControl.SyncInfo done = ContentSyncControl.decodeSyncDone(searchResult);
+				if (done != null && done.getCookie() != null) {
+					syncListener.cookie = done.getCookie();
+				}
+				syncState.setSyncCookie(syncListener.cookie);
+				syncListener.finish();
+				// Without explicit deletes, all entries that were not reported are deleted
+				syncState.setCompleteResult(cookie == null || syncListener.presentPhase || (done != null && !done.isRefreshDeletes()));
+				Log.i(TAG, searchResult.getEntryCount() + " entries returned by content synchronization.");
+				return true;
+			} catch (LDAPException e) {
+				syncState.setSyncCookie(null);
+				if (syncListener.entryCount > 0) {
+					throw e;
+				}
+				if (cookie != null && e.getResultCode().intValue() == ContentSyncControl.SYNC_REFRESH_REQUIRED) {
+					Log.i(TAG, "Server requires a full refresh");
+					cookie = null;
+				} else {
+					Log.w(TAG, "Content synchronization failed", e);
+					return false;
+				}
 			}
 		}
+	}
+
+	/**
+	 * Restricts the search filter to the entries that were created or modified since the given high-water mark.
+	 * <p>
+	 * The comparison is intentionally inclusive ({@code >=}, LDAP filters have no strict greater-than). Timestamps have a resolution of a second, so
+	 * entries that were modified in the same second as the newest entry of the last sync, but after its search, are not missed. The entries at the
+	 * high-water mark are retrieved again by every incremental sync, they are skipped by their digest when they are stored.
+	 * 
+	 * @param searchFilter
+	 *            The search filter of the account
+	 * @param highWaterMark
+	 *            The high-water mark in generalized time format (server clock)
+	 * @return The restricted search filter
+	 * @throws LDAPException
+	 *             If the search filter is invalid
+	 */
+	private static String getIncrementalFilter(final String searchFilter, final String highWaterMark) throws LDAPException {
+		final Filter changed = Filter.createORFilter(Filter.createGreaterOrEqualFilter(MODIFY_TIMESTAMP, highWaterMark), Filter.createGreaterOrEqualFilter(
+				CREATE_TIMESTAMP, highWaterMark));
+		return Filter.createANDFilter(Filter.create(searchFilter), changed).toString();
+	}
+
+	/**
+	 * Retrieves the entries page by page with the simple paged results control (RFC 2696). The size of the pages is adapted to the measured latency and
+	 * entry size. While a page is converted to contacts on a separate thread, the next page is already requested from the server, so at most two pages are
+	 * held in memory.
+	 * 
+	 * @param connection
+	 *            An established connection to the LDAP server
+	 * @param pageSize
+	 *            The initial page size
+	 * @param baseDN
+	 *            The baseDN that will be used for the search
+	 * @param searchFilter
+	 *            The search filter
+	 * @param attributes
+	 *            The attributes to retrieve
+	 * @param searchListener
+	 *            The listener that processes the entries
+	 * @throws LDAPException
+	 *             If a page cannot be retrieved or converted
+	 */
+	static void fetchPaged(final LDAPConnection connection, final int pageSize, final String baseDN, final String searchFilter, final String[] attributes,
+			final SearchResultListener searchListener) throws LDAPException {
+		final AdaptivePageSize adaptivePageSize = new AdaptivePageSize(pageSize);
+		final ExecutorService converter = Executors.newSingleThreadExecutor();
+		Future<?> pendingPage = null;
+		byte[] cookie = null;
+		int entryCount = 0;
+		try {
+			do {
+				final PageCollector page = new PageCollector();
+				final SearchRequest request = new SearchRequest(page, baseDN, SearchScope.SUB, searchFilter, attributes);
+				request.addControl(new SimplePagedResultsControl(adaptivePageSize.get(), cookie));
+				final long start = System.currentTimeMillis();
+				final SearchResult searchResult = connection.search(request);
+				cookie = SimplePagedResultsControl.getCookie(searchResult);
+				adaptivePageSize.pageFetched(page.entries.size(), page.bytes, System.currentTimeMillis() - start, cookie == null);
+				entryCount += page.entries.size();
+
+				// Wait for the previous page, before the conversion of this page is started
+				waitFor(pendingPage);
+				pendingPage = converter.submit(new Runnable() {
+					public void run() {
+						for (SearchResultEntry e : page.entries) {
+							searchListener.searchEntryReturned(e);
+						}
+					}
+				});
+			} while (cookie != null);
+			waitFor(pendingPage);
+			Log.i(TAG, entryCount + " entries returned (last page size " + adaptivePageSize.get() + ").");
+		} finally {
+			converter.shutdownNow();
+		}
+	}
 
-		return friendList;
+	private static void waitFor(Future<?> task) throws LDAPException {
+		if (task == null) {
+			return;
+		}
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LDAPException(ResultCode.LOCAL_ERROR, "Interrupted while fetching contacts", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof LDAPException) {
+				throw (LDAPException) e.getCause();
+			}
+			throw new LDAPException(ResultCode.LOCAL_ERROR, "Cannot fetch contacts", e.getCause());
+		}
+	}
+
+	/**
+	 * Splits the search into disjoint shards by the first letter of the last name and runs them in parallel on separate connections. The results of the
+	 * shards are merged into a single stream for the listener, entries returned by more than one shard (e.g. multi-valued last names) are only passed on
+	 * once.
+	 * 
+	 * @param ldapServer
+	 *            The LDAP server data
+	 * @param baseDN
+	 *            The baseDN that will be used for the search
+	 * @param searchFilter
+	 *            The search filter
+	 * @param attributes
+	 *            The attributes to retrieve
+	 * @param shardAttribute
+	 *            The attribute, whose first letter is used to split the search
+	 * @param searchListener
+	 *            The listener that processes the entries
+	 * @throws LDAPException
+	 *             If one of the shards fails
+	 */
+	private static void fetchSharded(final LDAPServerInstance ldapServer, final String baseDN, final String searchFilter, final String[] attributes,
+			final String shardAttribute, final SearchResultListener searchListener) throws LDAPException {
+		final List<String> shardFilters = getShardFilters(searchFilter, shardAttribute, ldapServer.getShards());
+		final DistinctDNListener mergingListener = new DistinctDNListener(searchListener, shardAttribute);
+		final ExecutorService executor = Executors.newFixedThreadPool(shardFilters.size());
+		final ArrayList<Future<?>> shards = new ArrayList<Future<?>>(shardFilters.size());
+		try {
+			for (final String shardFilter : shardFilters) {
+				shards.add(executor.submit(new Callable<Void>() {
+					public Void call() throws LDAPException {
+						LDAPConnection connection = ldapServer.getConnection();
+						try {
+							if (ldapServer.usesPaging() && supportsControl(connection, SimplePagedResultsControl.PAGED_RESULTS_OID)) {
+								fetchPaged(connection, ldapServer.getPageSize(), baseDN, shardFilter, attributes, mergingListener);
+							} else {
+								connection.search(mergingListener, baseDN, SearchScope.SUB, shardFilter, attributes);
+							}
+							ldapServer.releaseConnection(connection);
+							connection = null;
+						} finally {
+							if (connection != null) {
+								ldapServer.releaseDefunctConnection(connection);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> shard : shards) {
+				waitFor(shard);
+			}
+			Log.i(TAG, mergingListener.entryCount.get() + " entries returned by " + shards.size() + " parallel searches.");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates the filters of the shards. The letters a-z are distributed over the shards, the last shard additionally gets all entries whose shard
+	 * attribute does not start with a letter or is missing. Substring filters are used, as most name attributes have no ordering rule.
+	 */
+	private static List<String> getShardFilters(final String searchFilter, final String shardAttribute, final int shardCount) throws LDAPException {
+		final Filter filter = Filter.create(searchFilter);
+		final int count = Math.min(shardCount, 26);
+		final ArrayList<Filter> allLetters = new ArrayList<Filter>(26);
+		final ArrayList<String> shardFilters = new ArrayList<String>(count);
+		for (int shard = 0; shard < count; shard++) {
+			final ArrayList<Filter> letters = new ArrayList<Filter>();
+			for (char c = (char) ('a' + shard * 26 / count); c < 'a' + (shard + 1) * 26 / count; c++) {
+				letters.add(Filter.createSubstringFilter(shardAttribute, String.valueOf(c), null, null));
+			}
+			allLetters.addAll(letters);
+			if (shard == count - 1) {
+				letters.add(Filter.createNOTFilter(Filter.createPresenceFilter(shardAttribute)));
+				letters.add(Filter.createNOTFilter(Filter.createORFilter(allLetters)));
+			}
+			shardFilters.add(Filter.createANDFilter(filter, Filter.createORFilter(letters)).toString());
+		}
+		return shardFilters;
+	}
+
+	/**
+	 * Checks whether the server announces the support of a control in its root DSE.
+	 * 
+	 * @param connection
+	 *            An established connection to the LDAP server
+	 * @param oid
+	 *            The OID of the control
+	 * @return {@code true} if the control is supported
+	 * @throws LDAPException
+	 *             If the root DSE cannot be read
+	 */
+	private static boolean supportsControl(final LDAPConnection connection, final String oid) throws LDAPException {
+		final RootDSE rootDSE = ConnectionPool.getRootDSE(connection);
+		return rootDSE != null && rootDSE.supportsControl(oid);
 	}
 
-	private static String[] getUsedAttributes(Bundle mappingBundle) {
+	/**
+	 * Collects the entries of a single page together with their estimated size.
+	 */
+	private static class PageCollector implements SearchResultListener {
+
+		private static final long serialVersionUID = -3306413717916253095L;
+
+		private final ArrayList<SearchResultEntry> entries = new ArrayList<SearchResultEntry>();
+		private long bytes = 0;
+
+		public void searchEntryReturned(SearchResultEntry e) {
+			entries.add(e);
+			for (Attribute a : e.getAttributes()) {
+				for (byte[] value : a.getValueByteArrays()) {
+					bytes += value.length;
+				}
+			}
+		}
+
+		public void searchReferenceReturned(SearchResultReference r) {
+			// Referrals are not followed
+		}
+	}
+
+	/**
+	 * Passes every entry only once to the given listener, even if it is returned by several shards. An entry can only be returned by more than one shard
+	 * if its shard attribute has several values, so only the DNs of these entries are kept.
+	 */
+	private static class DistinctDNListener implements SearchResultListener {
+
+		private static final long serialVersionUID = 7418045267630521953L;
+
+		private final SearchResultListener listener;
+		private final String shardAttribute;
+		private final HashSet<String> dns = new HashSet<String>();
+		private final AtomicInteger entryCount = new AtomicInteger();
+
+		public DistinctDNListener(SearchResultListener listener, String shardAttribute) {
+			this.listener = listener;
+			this.shardAttribute = shardAttribute;
+		}
+
+		public void searchEntryReturned(SearchResultEntry e) {
+			final Attribute shardValues = e.getAttribute(shardAttribute);
+			if (shardValues == null || shardValues.size() <= 1) {
+				// Matches a single shard
+				entryCount.incrementAndGet();
+				listener.searchEntryReturned(e);
+				return;
+			}
+			String dn;
+			try {
+				dn = DN.normalize(e.getDN());
+			} catch (LDAPException ex) {
+				dn = e.getDN();
+			}
+			synchronized (dns) {
+				if (!dns.add(dn)) {
+					return;
+				}
+			}
+			entryCount.incrementAndGet();
+			listener.searchEntryReturned(e);
+		}
+
+		public void searchReferenceReturned(SearchResultReference r) {
+			// Referrals are not followed
+		}
+	}
+
+	/**
+	 * Shows a notification for an error that occurred during the sync.
+	 * 
+	 * @param context
+	 *            The caller Activity's context
+	 * @param e
+	 *            The exception that caused the error
+	 */
+	private static void notifyError(final Context context, final LDAPException e) {
+		NotificationManager mNotificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+		int icon = R.drawable.icon;
+		CharSequence tickerText = "Error on LDAP Sync";
+		Notification notification = new Notification(icon, tickerText, System.currentTimeMillis());
+		Intent notificationIntent = new Intent(context, SyncService.class);
+		PendingIntent contentIntent = PendingIntent.getService(context, 0, notificationIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+		notification.setLatestEventInfo(context, tickerText, e.getMessage().replace("\\n", " "), contentIntent);
+		notification.flags = Notification.FLAG_AUTO_CANCEL;
+		mNotificationManager.notify(0, notification);
+	}
+
+	/**
+	 * Converts the entries of a search into contacts as soon as they arrive and passes them on to a {@link ContactListener}.
+	 */
+	private static class ContactSearchListener implements SearchResultListener {
+
+		private static final long serialVersionUID = 2745473916352186214L;
+
+		protected final ContactMapper mapper;
+		protected final SyncState syncState;
+		protected final ContactListener listener;
+
+		public ContactSearchListener(Bundle mappingBundle, SyncState syncState, ContactListener listener) {
+			this.mapper = new ContactMapper(mappingBundle);
+			this.syncState = syncState;
+			this.listener = listener;
+		}
+
+		public void searchEntryReturned(SearchResultEntry e) {
+			Contact u = toContact(e);
+			if (u != null) {
+				listener.onContact(u);
+			}
+		}
+
+		protected Contact toContact(SearchResultEntry e) {
+			return toContact(e, mapper);
+		}
+
+		protected Contact toContact(SearchResultEntry e, ContactMapper entryMapper) {
+			if (syncState != null) {
+				syncState.updateHighWaterMark(e.getAttributeValue(MODIFY_TIMESTAMP));
+				syncState.updateHighWaterMark(e.getAttributeValue(CREATE_TIMESTAMP));
+			}
+			final Contact c = entryMapper.map(e);
+			if (c != null) {
+				c.setModifyTimestamp(e.getAttributeValue(MODIFY_TIMESTAMP));
+			}
+			return c;
+		}
+
+		/**
+		 * Passes on the remaining contacts and records the parse failures in the sync state.
+		 *
+		 * @throws LDAPException
+		 *             If not all entries could be passed on
+		 */
+		public void finish() throws LDAPException {
+			if (syncState != null) {
+				syncState.addParseFailures(mapper.getParseFailures());
+			}
+		}
+
+		/**
+		 * Releases the resources of the listener, also if the search failed.
+		 */
+		public void close() {
+			// Nothing to release
+		}
+
+		public void searchReferenceReturned(SearchResultReference r) {
+			// Referrals are not followed
+		}
+	}
+
+	/**
+	 * Converts the entries of a search into contacts on a pool of worker threads. The contacts are passed on in the order the entries were returned. The
+	 * search is blocked while too many entries wait for their conversion. Every worker has its own mapper, so the parse failures are counted per
+	 * worker.
+	 */
+	private static class ParallelContactSearchListener extends ContactSearchListener {
+
+		private static final long serialVersionUID = -5838219750914427380L;
+
+		/**
+		 * Number of entries per worker that may wait for their conversion, before the search is blocked.
+		 */
+		private static final int MAX_PENDING_PER_WORKER = 32;
+
+		private final ContactMapper[] mappers;
+		private final ExecutorService workers;
+		private final ThreadLocal<ContactMapper> workerMapper;
+		private final LinkedList<Future<Contact>> pending = new LinkedList<Future<Contact>>();
+		private LDAPException error;
+
+		public ParallelContactSearchListener(Bundle mappingBundle, SyncState syncState, ContactListener listener, int workerCount) {
+			super(mappingBundle, syncState, listener);
+			mappers = new ContactMapper[workerCount];
+			final ValueDictionary dictionary = new ValueDictionary();
+			for (int i = 0; i < workerCount; i++) {
+				mappers[i] = new ContactMapper(mappingBundle, dictionary);
+			}
+			final AtomicInteger nextWorker = new AtomicInteger();
+			workerMapper = new ThreadLocal<ContactMapper>() {
+				@Override
+				protected ContactMapper initialValue() {
+					return mappers[nextWorker.getAndIncrement() % mappers.length];
+				}
+			};
+			workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "ContactConverter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		@Override
+		public synchronized void searchEntryReturned(final SearchResultEntry e) {
+			if (error != null) {
+				// The result is incomplete anyway
+				return;
+			}
+			pending.add(workers.submit(new Callable<Contact>() {
+				public Contact call() {
+					return toContact(e, workerMapper.get());
+				}
+			}));
+			while (!pending.isEmpty() && (pending.getFirst().isDone() || pending.size() > MAX_PENDING_PER_WORKER * mappers.length)) {
+				deliverFirst();
+			}
+		}
+
+		private void deliverFirst() {
+			try {
+				final Contact c = pending.removeFirst().get();
+				if (c != null) {
+					listener.onContact(c);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				fail(new LDAPException(ResultCode.LOCAL_ERROR, "Interrupted while converting the entries", ex));
+			} catch (ExecutionException ex) {
+				Log.e(TAG, "Entry cannot be converted", ex.getCause());
+				fail(new LDAPException(ResultCode.LOCAL_ERROR, "Entry cannot be converted", ex.getCause()));
+			}
+		}
+
+		/**
+		 * Stops passing on contacts, so the contacts of the search are not taken as complete.
+		 */
+		private void fail(LDAPException e) {
+			error = e;
+			for (Future<Contact> f : pending) {
+				f.cancel(true);
+			}
+			pending.clear();
+		}
+
+		@Override
+		public synchronized void finish() throws LDAPException {
+			while (!pending.isEmpty()) {
+				deliverFirst();
+			}
+			if (error != null) {
+				throw error;
+			}
+			for (int i = 0; i < mappers.length; i++) {
+				Log.i(TAG, "Converter " + i + ": " + mappers[i].getParseFailures() + " parse failures");
+				if (syncState != null) {
+					syncState.addParseFailures(mappers[i].getParseFailures());
+				}
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			workers.shutdownNow();
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Dispatches the entries and sync info messages of a content synchronization according to their sync state.
+	 */
+	private static class ContentSyncListener extends ContactSearchListener implements IntermediateResponseListener {
+
+		private static final long serialVersionUID = -6290170281419633424L;
+
+		private byte[] cookie = null;
+		private boolean presentPhase = false;
+		private int entryCount = 0;
+		private LDAPException error = null;
+
+		public ContentSyncListener(Bundle mappingBundle, SyncState syncState, ContactListener listener) {
+			super(mappingBundle, syncState, listener);
+		}
+
+		@Override
+		public void searchEntryReturned(SearchResultEntry e) {
+			entryCount++;
+			final Control c = e.getControl(ContentSyncControl.SYNC_STATE_OID);
+			if (c == null) {
+				super.searchEntryReturned(e);
+				return;
+			}
+			try {
+				final ContentSyncControl.EntryState state = ContentSyncControl.decodeEntryState(c);
+				if (state.getCookie() != null) {
+					cookie = state.getCookie();
+				}
+				switch (state.getState()) {
+				case ContentSyncControl.STATE_PRESENT:
+					listener.onContactUnchanged(e.getDN(), state.getEntryUUID());
+					break;
+				case ContentSyncControl.STATE_DELETE:
+					listener.onContactDeleted(e.getDN(), state.getEntryUUID());
+					break;
+				default:
+					final Contact u = toContact(e);
+					if (u != null) {
+						u.setUuid(state.getEntryUUID());
+						listener.onContact(u);
+					}
+				}
+			} catch (LDAPException ex) {
+				setError(ex);
+			}
+		}
+
+		public void intermediateResponseReturned(IntermediateResponse response) {
+			try {
+				final ContentSyncControl.SyncInfo info = ContentSyncControl.decodeSyncInfo(response);
+				if (info == null) {
+					return;
+				}
+				if (info.getCookie() != null) {
+					cookie = info.getCookie();
+				}
+				presentPhase |= info.isRefreshPresent();
+				for (String uuid : info.getEntryUUIDs()) {
+					entryCount++;
+					if (info.isRefreshDeletes()) {
+						listener.onContactDeleted(null, uuid);
+					} else {
+						listener.onContactUnchanged(null, uuid);
+					}
+				}
+			} catch (LDAPException e) {
+				setError(e);
+			}
+		}
+
+		private synchronized void setError(LDAPException e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+
+		/**
+		 * Rethrows the first error that occurred while processing the responses.
+		 */
+		public synchronized void checkError() throws LDAPException {
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	private static String[] removeAttribute(String[] attributes, String attribute) {
+		ArrayList<String> ldapAttributes = new ArrayList<String>(attributes.length);
+		for (String a : attributes) {
+			if (!attribute.equalsIgnoreCase(a)) {
+				ldapAttributes.add(a);
+			}
+		}
+		return ldapAttributes.toArray(new String[ldapAttributes.size()]);
+	}
+
+	private static String[] getUsedAttributes(Bundle mappingBundle, String... additionalAttributes) {
 		ArrayList<String> ldapAttributes = new ArrayList<String>();
-		String[] ldapArray = new String[mappingBundle.size()];
+		String[] ldapArray = new String[mappingBundle.size() + additionalAttributes.length];
 		for (String key : mappingBundle.keySet()) {
 			ldapAttributes.add(mappingBundle.getString(key));
 		}
+		for (String attribute : additionalAttributes) {
+			ldapAttributes.add(attribute);
+		}
 		ldapArray = ldapAttributes.toArray(ldapArray);
 		return ldapArray;
 	}
@@ -192,9 +951,9 @@ public class LDAPUtilities {
 	public static boolean authenticate(LDAPServerInstance ldapServer, Handler handler, final Context context) {
 		LDAPConnection connection = null;
 		try {
-			connection = ldapServer.getConnection();
+			connection = ldapServer.getAuthenticatedConnection();
 			if (connection != null) {
-				RootDSE s = connection.getRootDSE();
+				RootDSE s = ConnectionPool.getRootDSE(connection);
 				String[] baseDNs = null;
 				if (s != null) {
 					baseDNs = s.getNamingContextDNs();
@@ -205,11 +964,16 @@ public class LDAPUtilities {
 			}
 		} catch (LDAPException e) {
 			Log.e(TAG, "Error authenticating", e);
+			if (connection != null) {
+				ldapServer.releaseDefunctConnection(connection);
+				connection = null;
+			}
 			sendResult(null, false, handler, context, e.getMessage());
 			return false;
 		} finally {
 			if (connection != null) {
-				connection.close();
+				// Kept for the first sync of a new account
+				ldapServer.releaseConnection(connection);
 			}
 		}
 		return false;
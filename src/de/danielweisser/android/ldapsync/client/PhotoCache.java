@@ -0,0 +1,492 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * A persistent cache of the converted photos in the private storage of the application. The cache is keyed by the hash of the photo as stored in the
+ * directory and contains the converted JPEG image and its hash, i.e. the hash of what is written to the contacts provider. Photos that did not
+ * change since they were converted last are thus neither decoded nor compressed again. The least recently used photos are removed if the cache
+ * exceeds its maximum size. The maximum size is set with the preference {@value #PREF_SIZE}. Without it the cache grows, until the photos used by a
+ * sync fit, up to {@value #MAX_AUTO_SIZE_MB} MB.
+ * <p>
+ * The display photo of a new or changed photo is kept next to the converted photo until it is written to the contacts provider, see
+ * {@link #getDisplayPhoto(String)}.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class PhotoCache {
+
+	private static final String TAG = "PhotoCache";
+
+	/**
+	 * Preference of the application (shared by all accounts) with the maximum size of the cache in MB. Empty for a size that grows with the
+	 * directories.
+	 */
+	public static final String PREF_SIZE = "photoCacheSize";
+
+	public static final int MIN_SIZE_MB = 1;
+	public static final int MAX_SIZE_MB = 512;
+
+	/**
+	 * The size of a new cache without the preference, that grows up to {@value #MAX_AUTO_SIZE_MB} MB.
+	 */
+	private static final long INITIAL_AUTO_SIZE = 4 * 1024 * 1024L;
+	private static final int MAX_AUTO_SIZE_MB = 256;
+
+	/**
+	 * Size that is counted for every photo in addition to the converted photo, so photos that cannot be converted are evicted as well.
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private static final String DIRECTORY = "photos";
+	private static final String INDEX = "index";
+	private static final String DISPLAY_SUFFIX = ".display";
+
+	private static PhotoCache instance = null;
+
+	private final File directory;
+	private final LinkedHashMap<String, CachedPhoto> photos = new LinkedHashMap<String, CachedPhoto>(64, 0.75f, true);
+	private long size = 0;
+	/**
+	 * The maximum size set by the preference, 0 if the size grows with the photos used by a sync.
+	 */
+	private long maxSize = 0;
+	private long autoSize = INITIAL_AUTO_SIZE;
+	/**
+	 * Counts the syncs, the photos used by the current sync are not removed while the size can grow.
+	 */
+	private int generation = 0;
+	private boolean modified = false;
+	private int hits = 0;
+	private int misses = 0;
+
+	private PhotoCache(File directory) {
+		this.directory = directory;
+		load();
+	}
+
+	/**
+	 * @param context
+	 *            The context of the application
+	 * @return The photo cache of the application, with the maximum size of the preference {@value #PREF_SIZE}
+	 */
+	public static synchronized PhotoCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new PhotoCache(context.getDir(DIRECTORY, Context.MODE_PRIVATE));
+		}
+		final String value = PreferenceManager.getDefaultSharedPreferences(context).getString(PREF_SIZE, "");
+		int sizeMB = parseSize(value);
+		if (sizeMB < 0) {
+			Log.w(TAG, "Invalid photo cache size " + value + ", the size grows with the photos");
+			sizeMB = 0;
+		}
+		instance.setMaxSize(sizeMB * 1024L * 1024L);
+		return instance;
+	}
+
+	/**
+	 * @param value
+	 *            The value of the preference {@value #PREF_SIZE}
+	 * @return The maximum size in MB, 0 if the value is empty, or -1 if it is not a number from {@value #MIN_SIZE_MB} to {@value #MAX_SIZE_MB}
+	 */
+	public static int parseSize(String value) {
+		if (value == null || value.trim().length() == 0) {
+			return 0;
+		}
+		try {
+			final int sizeMB = Integer.parseInt(value.trim());
+			return (sizeMB >= MIN_SIZE_MB && sizeMB <= MAX_SIZE_MB) ? sizeMB : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private synchronized void setMaxSize(long maxSize) {
+		if (this.maxSize != maxSize) {
+			this.maxSize = maxSize;
+			evict();
+		}
+	}
+
+	/**
+	 * Returns the converted photo for a photo from the directory. The photo is read and checked outside the lock, so the workers of all syncs can
+	 * read photos at the same time.
+	 *
+	 * @param sourceHash
+	 *            The hash of the photo from the directory, see {@link #hash(byte[])}
+	 * @return The converted photo, {@code null} if the photo is not in the cache
+	 */
+	CachedPhoto get(String sourceHash) {
+		final CachedPhoto photo;
+		synchronized (this) {
+			photo = photos.get(sourceHash);
+			if (photo == null) {
+				misses++;
+				return null;
+			}
+		}
+		byte[] image = null;
+		if (photo.size > 0) {
+			image = read(new File(directory, sourceHash));
+			if (image == null || !photo.hash.equals(hash(image))) {
+				Log.w(TAG, "Cached photo " + sourceHash + " is damaged");
+				synchronized (this) {
+					// The photo may have been replaced in the meantime
+					if (photos.get(sourceHash) == photo) {
+						remove(sourceHash);
+					}
+					misses++;
+				}
+				return null;
+			}
+		}
+		synchronized (this) {
+			hits++;
+			photo.generation = generation;
+		}
+		return new CachedPhoto(photo.hash, image);
+	}
+
+	/**
+	 * Stores a converted photo.
+	 *
+	 * @param sourceHash
+	 *            The hash of the photo from the directory
+	 * @param image
+	 *            The converted photo, {@code null} if the photo cannot be converted
+	 * @return The cached photo
+	 */
+	CachedPhoto put(String sourceHash, byte[] image) {
+		final CachedPhoto photo = new CachedPhoto((image != null) ? hash(image) : "", image);
+		// Written to a file of its own, as another sync may convert the same photo
+		final File file = new File(directory, sourceHash + "." + Thread.currentThread().getId());
+		if (image != null && !write(file, image)) {
+			return photo;
+		}
+		synchronized (this) {
+			remove(sourceHash);
+			if (image != null && !file.renameTo(new File(directory, sourceHash))) {
+				Log.w(TAG, "Cannot store the cached photo " + sourceHash);
+				file.delete();
+				return photo;
+			}
+			// Only the hash and the size are kept in memory
+			final CachedPhoto cached = new CachedPhoto(photo.hash, photo.size);
+			cached.generation = generation;
+			photos.put(sourceHash, cached);
+			size += photo.size + ENTRY_OVERHEAD;
+			modified = true;
+			evict();
+		}
+		return photo;
+	}
+
+	/**
+	 * Stores the display photo of a photo that is in the cache, until it is written by {@link #getDisplayPhoto(String)} and
+	 * {@link #removeDisplayPhoto(String)}.
+	 *
+	 * @param sourceHash
+	 *            The hash of the photo from the directory
+	 * @param displayImage
+	 *            The display photo
+	 */
+	void putDisplayPhoto(String sourceHash, byte[] displayImage) {
+		final File file = new File(directory, sourceHash + DISPLAY_SUFFIX + "." + Thread.currentThread().getId());
+		if (!write(file, displayImage)) {
+			return;
+		}
+		synchronized (this) {
+			final CachedPhoto photo = photos.get(sourceHash);
+			if (photo == null || !file.renameTo(new File(directory, sourceHash + DISPLAY_SUFFIX))) {
+				file.delete();
+				return;
+			}
+			size += displayImage.length - photo.displaySize;
+			photo.displaySize = displayImage.length;
+			modified = true;
+			evict();
+		}
+	}
+
+	/**
+	 * @param sourceHash
+	 *            The hash of the photo from the directory
+	 * @return {@code true} if the display photo of the photo is in the cache
+	 */
+	synchronized boolean hasDisplayPhoto(String sourceHash) {
+		final CachedPhoto photo = photos.get(sourceHash);
+		return photo != null && photo.displaySize > 0;
+	}
+
+	/**
+	 * Returns the file of a display photo, that is streamed to the contacts provider. The file may be removed by another sync before it is opened.
+	 *
+	 * @param sourceHash
+	 *            The hash of the photo from the directory
+	 * @return The file of the display photo or {@code null} if the display photo is not in the cache
+	 */
+	public synchronized File getDisplayPhoto(String sourceHash) {
+		final CachedPhoto photo = photos.get(sourceHash);
+		return (photo != null && photo.displaySize > 0) ? new File(directory, sourceHash + DISPLAY_SUFFIX) : null;
+	}
+
+	/**
+	 * Removes a display photo that was written to the contacts provider. Unchanged photos do not need their display photo again.
+	 *
+	 * @param sourceHash
+	 *            The hash of the photo from the directory
+	 */
+	public synchronized void removeDisplayPhoto(String sourceHash) {
+		final CachedPhoto photo = photos.get(sourceHash);
+		if (photo != null && photo.displaySize > 0) {
+			removeDisplayPhoto(sourceHash, photo);
+		}
+	}
+
+	/**
+	 * Writes the index of the cache, if it was modified.
+	 */
+	public synchronized void save() {
+		Log.i(TAG, hits + " hits, " + misses + " misses, " + photos.size() + " photos, " + size / 1024 + " of " + getLimit() / 1024 + " KB");
+		hits = 0;
+		misses = 0;
+		generation++;
+		if (!modified) {
+			return;
+		}
+		PrintWriter out = null;
+		try {
+			// The entries are written in LRU order, so the order survives a restart
+			out = new PrintWriter(new FileWriter(new File(directory, INDEX)));
+			for (Map.Entry<String, CachedPhoto> e : photos.entrySet()) {
+				out.println(e.getKey() + "\t" + e.getValue().hash + "\t" + e.getValue().size + "\t" + e.getValue().displaySize);
+			}
+			modified = false;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write the photo cache index", e);
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	private void load() {
+		final File index = new File(directory, INDEX);
+		if (!index.exists()) {
+			return;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(index));
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] values = line.split("\t");
+				if (values.length == 3 || values.length == 4) {
+					final CachedPhoto photo = new CachedPhoto(values[1], Integer.parseInt(values[2]));
+					if (values.length == 4) {
+						photo.displaySize = Integer.parseInt(values[3]);
+					}
+					photos.put(values[0], photo);
+					size += photo.size + photo.displaySize + ENTRY_OVERHEAD;
+				}
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot read the photo cache index", e);
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Invalid photo cache index", e);
+		} finally {
+			// The photos of the last syncs fitted
+			autoSize = Math.max(INITIAL_AUTO_SIZE, Math.min(size, MAX_AUTO_SIZE_MB * 1024L * 1024L));
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private long getLimit() {
+		return (maxSize > 0) ? maxSize : autoSize;
+	}
+
+	private void evict() {
+		final Iterator<Map.Entry<String, CachedPhoto>> i = photos.entrySet().iterator();
+		while (size > getLimit() && i.hasNext()) {
+			final Map.Entry<String, CachedPhoto> e = i.next();
+			if (maxSize == 0 && e.getValue().generation == generation && autoSize < MAX_AUTO_SIZE_MB * 1024L * 1024L) {
+				// The least recently used photo is used by the current sync, so the photos of the directory do not fit
+				autoSize = Math.min(size, MAX_AUTO_SIZE_MB * 1024L * 1024L);
+				continue;
+			}
+			removeDisplayPhoto(e.getKey(), e.getValue());
+			size -= e.getValue().size + ENTRY_OVERHEAD;
+			new File(directory, e.getKey()).delete();
+			i.remove();
+			modified = true;
+		}
+	}
+
+	private void remove(String sourceHash) {
+		final CachedPhoto photo = photos.remove(sourceHash);
+		if (photo != null) {
+			removeDisplayPhoto(sourceHash, photo);
+			size -= photo.size + ENTRY_OVERHEAD;
+			new File(directory, sourceHash).delete();
+			modified = true;
+		}
+	}
+
+	private void removeDisplayPhoto(String sourceHash, CachedPhoto photo) {
+		if (photo.displaySize > 0) {
+			size -= photo.displaySize;
+			photo.displaySize = 0;
+			new File(directory, sourceHash + DISPLAY_SUFFIX).delete();
+			modified = true;
+		}
+	}
+
+	private static byte[] read(File file) {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			final byte[] data = new byte[(int) file.length()];
+			int offset = 0;
+			int count;
+			while (offset < data.length && (count = in.read(data, offset, data.length - offset)) > 0) {
+				offset += count;
+			}
+			return (offset == data.length) ? data : null;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private static boolean write(File file, byte[] data) {
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			out.write(data);
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write " + file, e);
+			file.delete();
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param data
+	 *            A photo
+	 * @return The MD5 hash of the photo as hex string
+	 */
+	public static String hash(byte[] data) {
+		try {
+			return toHex(MessageDigest.getInstance("MD5").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param digest
+	 *            A digest
+	 * @return The digest as lower case hex string, the format of all stored hashes
+	 */
+	static String toHex(byte[] digest) {
+		final StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A converted photo.
+	 */
+	static final class CachedPhoto {
+		/**
+		 * The hash of the converted photo, an empty string if the photo cannot be converted.
+		 */
+		final String hash;
+		private final byte[] image;
+		private final int size;
+		/**
+		 * The size of the display photo, 0 if it is not in the cache.
+		 */
+		private int displaySize = 0;
+		/**
+		 * The sync that used the photo last, see {@link PhotoCache#generation}.
+		 */
+		private int generation = -1;
+
+		private CachedPhoto(String hash, byte[] image) {
+			this.hash = hash;
+			this.image = image;
+			this.size = (image != null) ? image.length : 0;
+		}
+
+		private CachedPhoto(String hash, int size) {
+			this.hash = hash;
+			this.image = null;
+			this.size = size;
+		}
+
+		/**
+		 * @return The converted photo or {@code null} if the photo cannot be converted
+		 */
+		byte[] getImage() {
+			return image;
+		}
+	}
+}
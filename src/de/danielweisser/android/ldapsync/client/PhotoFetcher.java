@@ -0,0 +1,262 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.ArrayList;
+
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * The second phase of a two-phase fetch: the contacts of the first phase are retrieved without photo. Contacts that are new or may have changed are
+ * collected, and their photos are retrieved in batches of base searches, that are sent to the server without waiting for the previous result. The
+ * contacts are then passed on to the listener. Unchanged contacts are passed on at once and keep their stored photo.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class PhotoFetcher implements ContactListener {
+
+	private static final String TAG = "PhotoFetcher";
+
+	/**
+	 * Number of photos that are requested at the same time.
+	 */
+	private static final int BATCH_SIZE = 50;
+
+	private final LDAPServerInstance ldapServer;
+	private final String[] photoAttributes;
+	private final ContactListener listener;
+
+	private final ArrayList<Contact> pending = new ArrayList<Contact>(BATCH_SIZE);
+	/**
+	 * The connection between two batches. A batch takes it over while its photos are retrieved, so the lock is not held during the searches.
+	 */
+	private LDAPConnection connection = null;
+	private LDAPException error = null;
+	private boolean closed = false;
+	private int photoCount = 0;
+	private int skippedCount = 0;
+
+	/**
+	 * @param photoAttributes
+	 *            The photo attributes in the order of preference
+	 */
+	PhotoFetcher(LDAPServerInstance ldapServer, String[] photoAttributes, ContactListener listener) {
+		this.ldapServer = ldapServer;
+		this.photoAttributes = photoAttributes;
+		this.listener = listener;
+	}
+
+	public void onContact(Contact contact) {
+		if (!listener.isModified(contact.getDn(), contact.getUuid(), contact.getModifyTimestamp())) {
+			synchronized (this) {
+				skippedCount++;
+			}
+			contact.setImageLoaded(false);
+			listener.onContact(contact);
+			return;
+		}
+		final ArrayList<Contact> batch;
+		synchronized (this) {
+			if (error != null || closed) {
+				return;
+			}
+			pending.add(contact);
+			if (pending.size() < BATCH_SIZE) {
+				return;
+			}
+			batch = takePending();
+		}
+		fetchPhotos(batch);
+	}
+
+	public void onContactUnchanged(String dn, String uuid) {
+		listener.onContactUnchanged(dn, uuid);
+	}
+
+	public void onContactDeleted(String dn, String uuid) {
+		listener.onContactDeleted(dn, uuid);
+	}
+
+	public boolean isModified(String dn, String uuid, String modifyTimestamp) {
+		return listener.isModified(dn, uuid, modifyTimestamp);
+	}
+
+	/**
+	 * Retrieves the photos of the remaining contacts and returns the connection.
+	 *
+	 * @throws LDAPException
+	 *             If a photo could not be retrieved
+	 */
+	void finish() throws LDAPException {
+		try {
+			final ArrayList<Contact> batch;
+			synchronized (this) {
+				batch = takePending();
+			}
+			fetchPhotos(batch);
+			synchronized (this) {
+				if (error != null) {
+					throw error;
+				}
+				Log.i(TAG, photoCount + " photos retrieved, " + skippedCount + " unchanged contacts skipped.");
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Returns the connection, if the first phase failed. A batch that is still retrieved returns its connection when it is done.
+	 */
+	synchronized void close() {
+		closed = true;
+		pending.clear();
+		if (connection != null) {
+			ldapServer.releaseConnection(connection);
+			connection = null;
+		}
+	}
+
+	private ArrayList<Contact> takePending() {
+		final ArrayList<Contact> batch = new ArrayList<Contact>(pending);
+		pending.clear();
+		return batch;
+	}
+
+	private void fetchPhotos(ArrayList<Contact> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		LDAPConnection c;
+		synchronized (this) {
+			if (error != null || closed) {
+				return;
+			}
+			c = connection;
+			connection = null;
+		}
+		int fetched = 0;
+		LDAPException failure = null;
+		try {
+			if (c == null) {
+				// A separate connection, as the first phase is still running
+				c = ldapServer.getConnection();
+			}
+			fetched = fetchPhotos(c, batch);
+		} catch (LDAPException e) {
+			failure = e;
+		}
+		synchronized (this) {
+			photoCount += fetched;
+			if (failure != null && error == null) {
+				error = failure;
+			}
+			if (c == null) {
+				return;
+			}
+			if (failure != null) {
+				ldapServer.releaseDefunctConnection(c);
+			} else if (connection == null && !closed) {
+				connection = c;
+			} else {
+				ldapServer.releaseConnection(c);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of photos retrieved
+	 */
+	private int fetchPhotos(LDAPConnection c, ArrayList<Contact> batch) throws LDAPException {
+		int fetched = 0;
+		try {
+			final ArrayList<PhotoCollector> photos = new ArrayList<PhotoCollector>(batch.size());
+			final ArrayList<AsyncRequestID> requests = new ArrayList<AsyncRequestID>(batch.size());
+			for (Contact contact : batch) {
+				final PhotoCollector photo = new PhotoCollector(photoAttributes);
+				photos.add(photo);
+				requests.add(c.asyncSearch(new SearchRequest(photo, contact.getDn(), SearchScope.BASE, "(objectClass=*)", photoAttributes)));
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				final LDAPResult result = requests.get(i).get();
+				if (result.getResultCode() != ResultCode.SUCCESS && result.getResultCode() != ResultCode.NO_SUCH_OBJECT) {
+					throw new LDAPException(result);
+				}
+				final Contact contact = batch.get(i);
+				final PhotoCollector photo = photos.get(i);
+				if (!photo.found) {
+					// Renamed or deleted since the first phase: the stored photo is kept, only a returned entry without one removes it
+					contact.setImageLoaded(false);
+				} else if (photo.value != null) {
+					contact.setImage(photo.value);
+					fetched++;
+				}
+				listener.onContact(contact);
+			}
+			return fetched;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LDAPException(ResultCode.LOCAL_ERROR, "Interrupted while fetching photos", e);
+		}
+	}
+
+	/**
+	 * Receives the photo of a single entry.
+	 */
+	private static class PhotoCollector implements AsyncSearchResultListener {
+
+		private static final long serialVersionUID = -2079413385012834478L;
+
+		private final String[] attributes;
+		private volatile boolean found = false;
+		private volatile byte[] value = null;
+
+		public PhotoCollector(String[] attributes) {
+			this.attributes = attributes;
+		}
+
+		public void searchEntryReturned(SearchResultEntry e) {
+			found = true;
+			for (String attribute : attributes) {
+				value = e.getAttributeValueBytes(attribute);
+				if (value != null) {
+					return;
+				}
+			}
+		}
+
+		public void searchReferenceReturned(SearchResultReference r) {
+			// Referrals are not followed
+		}
+
+		public void searchResultReceived(AsyncRequestID requestID, SearchResult searchResult) {
+			// The result is read from the request id
+		}
+	}
+}
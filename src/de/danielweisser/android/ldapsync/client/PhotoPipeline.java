@@ -0,0 +1,336 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Converts the photos of the LDAP entries into contact photos on a small pool of worker threads, while the search continues. The photos are decoded
+ * with a sample size, so only a bitmap close to the size of a contact photo is allocated, and the memory of all bitmaps being decoded is limited by a
+ * budget. Small JPEG photos are used as they are. Photos that were converted before are taken from the {@link PhotoCache}. The contacts are passed on
+ * to the listener in the order they were received.
+ * <p>
+ * The display photo is only made for photos that are not in the cache, i.e. photos that are new or changed and are written to the contacts
+ * provider. It is stored in the cache and streamed from there by the photo writer, so it is not kept with the contact.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class PhotoPipeline implements ContactListener {
+
+	private static final String TAG = "PhotoPipeline";
+
+	/**
+	 * Width and height of the contact photos (the thumbnail size of the contacts provider).
+	 */
+	static final int PHOTO_SIZE = 96;
+
+	/**
+	 * Maximum width and height of the display photos (the display photo size of the contacts provider).
+	 */
+	private static final int DISPLAY_PHOTO_SIZE = 720;
+
+	/**
+	 * Photos up to this size in bytes are passed on unchanged as display photo, larger photos are scaled down to {@value #DISPLAY_PHOTO_SIZE} pixels.
+	 */
+	private static final int MAX_DISPLAY_PHOTO_BYTES = 64 * 1024;
+
+	/**
+	 * The API level that introduced display photos (Ice Cream Sandwich). Before, only the contact photo is stored.
+	 */
+	private static final int DISPLAY_PHOTO_API = 14;
+
+	private static final int WORKERS = 2;
+
+	/**
+	 * Number of contacts that may wait for their photo, before the search is slowed down.
+	 */
+	private static final int MAX_PENDING = 16;
+
+	/**
+	 * Memory for the bitmaps that are decoded at the same time, in KB. Shared by all syncs of the process.
+	 */
+	private static final int MEMORY_BUDGET_KB = 4 * 1024;
+	private static final Semaphore memoryBudget = new Semaphore(MEMORY_BUDGET_KB, true);
+
+	private final ContactListener listener;
+	private final PhotoCache cache;
+	private final LinkedList<PendingContact> pending = new LinkedList<PendingContact>();
+	private ExecutorService workers = null;
+	private int photoCount = 0;
+
+	/**
+	 * @param listener
+	 *            The listener that receives the contacts with converted photos
+	 * @param cache
+	 *            The cache of the converted photos, may be {@code null}
+	 */
+	PhotoPipeline(ContactListener listener, PhotoCache cache) {
+		this.listener = listener;
+		this.cache = cache;
+	}
+
+	public synchronized void onContact(final Contact contact) {
+		final byte[] photo = contact.getImage();
+		if (photo == null || !contact.isImageLoaded()) {
+			if (pending.isEmpty()) {
+				listener.onContact(contact);
+			} else {
+				pending.add(new PendingContact(contact, null));
+			}
+			return;
+		}
+		if (workers == null) {
+			workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, TAG);
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		pending.add(new PendingContact(contact, workers.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return toContactPhoto(contact, photo);
+			}
+		})));
+		deliver(false);
+		while (pending.size() > MAX_PENDING) {
+			deliverFirst();
+		}
+	}
+
+	public synchronized void onContactUnchanged(String dn, String uuid) {
+		deliver(true);
+		listener.onContactUnchanged(dn, uuid);
+	}
+
+	public synchronized void onContactDeleted(String dn, String uuid) {
+		deliver(true);
+		listener.onContactDeleted(dn, uuid);
+	}
+
+	public boolean isModified(String dn, String uuid, String modifyTimestamp) {
+		return listener.isModified(dn, uuid, modifyTimestamp);
+	}
+
+	/**
+	 * Converts a photo to the contact photo or takes it from the cache. The display photo of a photo that is not in the cache is stored in the cache
+	 * and set on the contact.
+	 */
+	private byte[] toContactPhoto(Contact contact, byte[] photo) {
+		if (cache == null) {
+			return convert(photo);
+		}
+		final String sourceHash = PhotoCache.hash(photo);
+		PhotoCache.CachedPhoto cached = cache.get(sourceHash);
+		if (cached == null) {
+			final byte[] image = convert(photo);
+			if (Thread.currentThread().isInterrupted()) {
+				// Not converted, as the sync was stopped
+				return image;
+			}
+			cached = cache.put(sourceHash, image);
+			if (image != null && Build.VERSION.SDK_INT >= DISPLAY_PHOTO_API) {
+				final byte[] displayPhoto = toDisplayPhoto(photo);
+				if (displayPhoto != null && !Thread.currentThread().isInterrupted()) {
+					cache.putDisplayPhoto(sourceHash, displayPhoto);
+				}
+			}
+		}
+		if (cached.getImage() != null && cache.hasDisplayPhoto(sourceHash)) {
+			contact.setDisplayPhoto(sourceHash);
+		}
+		return cached.getImage();
+	}
+
+	/**
+	 * @return The photo itself if it is small enough for the contacts provider, else the photo scaled to {@value #DISPLAY_PHOTO_SIZE} pixels, or
+	 *         {@code null} if it cannot be scaled, so the contact photo is used instead
+	 */
+	private static byte[] toDisplayPhoto(byte[] photo) {
+		if (photo.length <= MAX_DISPLAY_PHOTO_BYTES) {
+			return photo;
+		}
+		return convert(photo, DISPLAY_PHOTO_SIZE);
+	}
+
+	/**
+	 * Waits for the remaining photos and passes the remaining contacts on.
+	 */
+	synchronized void finish() {
+		deliver(true);
+		Log.i(TAG, photoCount + " photos passed on.");
+	}
+
+	/**
+	 * Stops the worker threads and saves the photo cache. Contacts that were not passed on yet are dropped.
+	 */
+	synchronized void close() {
+		if (workers != null) {
+			workers.shutdownNow();
+			workers = null;
+		}
+		pending.clear();
+		if (cache != null) {
+			cache.save();
+		}
+	}
+
+	/**
+	 * Passes on the contacts at the head of the queue, whose photos are converted.
+	 *
+	 * @param wait
+	 *            {@code true} to wait for all photos
+	 */
+	private void deliver(boolean wait) {
+		while (!pending.isEmpty() && (wait || pending.getFirst().isDone())) {
+			deliverFirst();
+		}
+	}
+
+	private void deliverFirst() {
+		final PendingContact p = pending.removeFirst();
+		if (p.photo != null) {
+			try {
+				final byte[] image = p.photo.get();
+				if (image != null) {
+					photoCount++;
+				}
+				p.contact.setImage(image);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				keepStoredPhoto(p.contact);
+			} catch (ExecutionException e) {
+				Log.w(TAG, "Photo of " + p.contact.getDn() + " cannot be converted", e.getCause());
+				keepStoredPhoto(p.contact);
+			}
+		}
+		listener.onContact(p.contact);
+	}
+
+	/**
+	 * Marks the photo of a contact as not loaded, so the photo that is stored with the contact is not deleted.
+	 */
+	private static void keepStoredPhoto(Contact contact) {
+		contact.setImage(null);
+		contact.setDisplayPhoto(null);
+		contact.setImageLoaded(false);
+	}
+
+	/**
+	 * Converts the photo of a LDAP entry to a JPEG image of at most {@value #PHOTO_SIZE} pixels width and height. JPEG images that are small enough
+	 * are returned unchanged. Blocks while the memory budget is used by other conversions.
+	 *
+	 * @param photo
+	 *            The value of the photo attribute
+	 * @return The JPEG image or {@code null} if the photo cannot be decoded or is too large
+	 */
+	static byte[] convert(byte[] photo) {
+		return convert(photo, PHOTO_SIZE);
+	}
+
+	/**
+	 * Converts the photo of a LDAP entry to a JPEG image of at most the given width and height, see {@link #convert(byte[])}.
+	 */
+	private static byte[] convert(byte[] photo, int photoSize) {
+		final BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(photo, 0, photo.length, bounds);
+		final int width = bounds.outWidth;
+		final int height = bounds.outHeight;
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+		if (isJpeg(photo) && width <= photoSize && height <= photoSize) {
+			return photo;
+		}
+
+		int sampleSize = 1;
+		while (Math.max(width, height) / (sampleSize * 2) >= photoSize) {
+			sampleSize *= 2;
+		}
+		// RGB_565 needs 2 bytes per pixel, plus the scaled bitmap
+		final int sampledKB = (int) (((long) (width / sampleSize + 1) * (height / sampleSize + 1) * 2 + photoSize * photoSize * 2) / 1024 + 1);
+		if (sampledKB > MEMORY_BUDGET_KB) {
+			Log.w(TAG, "Photo of " + width + "x" + height + " pixels is too large");
+			return null;
+		}
+
+		try {
+			memoryBudget.acquire(sampledKB);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		try {
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inSampleSize = sampleSize;
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+			Bitmap bitmap = BitmapFactory.decodeByteArray(photo, 0, photo.length, options);
+			if (bitmap == null) {
+				return null;
+			}
+			final int size = Math.max(bitmap.getWidth(), bitmap.getHeight());
+			if (size > photoSize) {
+				final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() * photoSize / size, bitmap.getHeight() * photoSize / size,
+						true);
+				if (scaled != bitmap) {
+					bitmap.recycle();
+					bitmap = scaled;
+				}
+			}
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			bitmap.compress(Bitmap.CompressFormat.JPEG, 90, baos);
+			bitmap.recycle();
+			return baos.toByteArray();
+		} finally {
+			memoryBudget.release(sampledKB);
+		}
+	}
+
+	private static boolean isJpeg(byte[] photo) {
+		return photo.length > 2 && (photo[0] & 0xFF) == 0xFF && (photo[1] & 0xFF) == 0xD8;
+	}
+
+	private static final class PendingContact {
+		private final Contact contact;
+		private final Future<byte[]> photo;
+
+		private PendingContact(Contact contact, Future<byte[]> photo) {
+			this.contact = contact;
+			this.photo = photo;
+		}
+
+		private boolean isDone() {
+			return photo == null || photo.isDone();
+		}
+	}
+}
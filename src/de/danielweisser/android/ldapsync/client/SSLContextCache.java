@@ -0,0 +1,241 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import android.util.Log;
+
+import com.unboundid.util.ssl.SSLUtil;
+import com.unboundid.util.ssl.TrustAllTrustManager;
+
+/**
+ * Caches the SSL context per server, so that the TLS sessions of previous connections are resumed instead of doing a full handshake for every
+ * connection. The same context is used for SSL and StartTLS connections. The handshakes are counted, to see how many sessions were resumed.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class SSLContextCache {
+
+	private static final String TAG = "SSLContextCache";
+
+	/**
+	 * Sessions are kept for 24 hours (if the server allows it).
+	 */
+	private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+	private static final HashMap<String, SSLContext> contexts = new HashMap<String, SSLContext>();
+
+	private static final AtomicInteger fullHandshakes = new AtomicInteger();
+	private static final AtomicInteger resumedHandshakes = new AtomicInteger();
+
+	private SSLContextCache() {
+	}
+
+	/**
+	 * Retrieves the SSL context for a server. The context is created on the first call.
+	 *
+	 * @param server
+	 *            Identifies the server (host and port)
+	 * @return The SSL context of the server
+	 * @throws GeneralSecurityException
+	 *             If the SSL context cannot be created
+	 */
+	public static synchronized SSLContext getSSLContext(String server) throws GeneralSecurityException {
+		SSLContext context = contexts.get(server);
+		if (context == null) {
+			final SSLContext delegate = new SSLUtil(new TrustAllTrustManager()).createSSLContext();
+			final SSLSessionContext sessionContext = delegate.getClientSessionContext();
+			if (sessionContext != null) {
+				sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+			}
+			context = new CountingSSLContext(delegate);
+			contexts.put(server, context);
+		}
+		return context;
+	}
+
+	/**
+	 * Retrieves the SSL socket factory for a server.
+	 *
+	 * @param server
+	 *            Identifies the server (host and port)
+	 * @return The SSL socket factory of the server
+	 * @throws GeneralSecurityException
+	 *             If the SSL context cannot be created
+	 */
+	public static SSLSocketFactory getSocketFactory(String server) throws GeneralSecurityException {
+		return getSSLContext(server).getSocketFactory();
+	}
+
+	/**
+	 * @return The number of full TLS handshakes since the start of the process.
+	 */
+	public static int getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * @return The number of TLS handshakes since the start of the process, that resumed a cached session.
+	 */
+	public static int getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	/**
+	 * A SSL context that counts the handshakes of its sockets.
+	 */
+	private static final class CountingSSLContext extends SSLContext {
+		private CountingSSLContext(SSLContext delegate) {
+			super(new CountingSSLContextSpi(delegate), delegate.getProvider(), delegate.getProtocol());
+		}
+	}
+
+	private static final class CountingSSLContextSpi extends SSLContextSpi {
+		private final SSLContext delegate;
+		private final SSLSocketFactory socketFactory;
+
+		private CountingSSLContextSpi(SSLContext delegate) {
+			this.delegate = delegate;
+			this.socketFactory = new CountingSocketFactory(delegate.getSocketFactory());
+		}
+
+		@Override
+		protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+			// The delegate is already initialized
+		}
+
+		@Override
+		protected SSLSocketFactory engineGetSocketFactory() {
+			return socketFactory;
+		}
+
+		@Override
+		protected SSLServerSocketFactory engineGetServerSocketFactory() {
+			return delegate.getServerSocketFactory();
+		}
+
+		@Override
+		protected SSLEngine engineCreateSSLEngine() {
+			return delegate.createSSLEngine();
+		}
+
+		@Override
+		protected SSLEngine engineCreateSSLEngine(String host, int port) {
+			return delegate.createSSLEngine(host, port);
+		}
+
+		@Override
+		protected SSLSessionContext engineGetServerSessionContext() {
+			return delegate.getServerSessionContext();
+		}
+
+		@Override
+		protected SSLSessionContext engineGetClientSessionContext() {
+			return delegate.getClientSessionContext();
+		}
+	}
+
+	/**
+	 * A socket factory that registers a listener for the completed handshake on every socket. A session that was created before the socket is a
+	 * resumed session.
+	 */
+	private static final class CountingSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory delegate;
+
+		private CountingSocketFactory(SSLSocketFactory delegate) {
+			this.delegate = delegate;
+		}
+
+		private Socket count(Socket socket) {
+			if (socket instanceof SSLSocket) {
+				final long created = System.currentTimeMillis();
+				((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+					public void handshakeCompleted(HandshakeCompletedEvent event) {
+						if (event.getSession().getCreationTime() < created) {
+							resumedHandshakes.incrementAndGet();
+						} else {
+							fullHandshakes.incrementAndGet();
+						}
+						Log.d(TAG, "TLS handshakes: " + resumedHandshakes.get() + " resumed, " + fullHandshakes.get() + " full");
+					}
+				});
+			}
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return count(delegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return count(delegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+			return count(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException {
+			return count(delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return count(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return count(delegate.createSocket(address, port, localAddress, localPort));
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+	}
+}
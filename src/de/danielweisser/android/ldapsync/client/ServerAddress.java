@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * The address (host and port) of a single LDAP server of an account.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class ServerAddress {
+
+	private static final String TAG = "ServerAddress";
+
+	/**
+	 * Prefix of a host entry, that is resolved by a DNS SRV lookup.
+	 */
+	static final String SRV_PREFIX = "_ldap._tcp.";
+
+	/**
+	 * Prefix of the SRV records of LDAP over SSL.
+	 */
+	static final String SSL_SRV_PREFIX = "_ldaps._tcp.";
+
+	final String host;
+	final int port;
+
+	ServerAddress(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Parses the host setting of an account. The setting contains one or more servers separated by commas or spaces in the order of preference. Every
+	 * server is given as host or host:port. Entries starting with {@value #SRV_PREFIX} or {@value #SSL_SRV_PREFIX} are resolved by DNS SRV lookups.
+	 *
+	 * @param hosts
+	 *            The host setting
+	 * @param defaultPort
+	 *            The port of servers without an explicit port
+	 * @param ssl
+	 *            {@code true} if the servers are connected with SSL
+	 * @return The servers
+	 */
+	static List<ServerAddress> parse(String hosts, int defaultPort, boolean ssl) {
+		final ArrayList<ServerAddress> servers = new ArrayList<ServerAddress>();
+		for (String entry : hosts.trim().split("[,;\\s]+")) {
+			if (entry.length() == 0) {
+				continue;
+			}
+			if (entry.startsWith(SRV_PREFIX) || entry.startsWith(SSL_SRV_PREFIX)) {
+				servers.addAll(resolve(entry, defaultPort, ssl));
+				continue;
+			}
+			final int separator = entry.lastIndexOf(':');
+			if (separator > 0 && entry.indexOf(':') == separator) {
+				try {
+					servers.add(new ServerAddress(entry.substring(0, separator), Integer.parseInt(entry.substring(separator + 1))));
+					continue;
+				} catch (NumberFormatException e) {
+					Log.w(TAG, "Invalid port: " + entry);
+				}
+			}
+			servers.add(new ServerAddress(entry, defaultPort));
+		}
+		return servers;
+	}
+
+	/**
+	 * Resolves a SRV entry. With SSL the {@value #SSL_SRV_PREFIX} records of the domain are used. If there are none, the hosts of the
+	 * {@value #SRV_PREFIX} records are connected on the configured port, as their port is the one of plain LDAP.
+	 */
+	private static List<ServerAddress> resolve(String entry, int defaultPort, boolean ssl) {
+		if (ssl && entry.startsWith(SRV_PREFIX)) {
+			final String sslEntry = SSL_SRV_PREFIX + entry.substring(SRV_PREFIX.length());
+			final List<ServerAddress> sslServers = DnsSrvResolver.lookup(sslEntry);
+			Log.i(TAG, sslEntry + " resolved to " + sslServers.size() + " servers");
+			if (!sslServers.isEmpty()) {
+				return sslServers;
+			}
+			final List<ServerAddress> servers = DnsSrvResolver.lookup(entry);
+			Log.i(TAG, entry + " resolved to " + servers.size() + " servers, using port " + defaultPort);
+			final ArrayList<ServerAddress> sslPortServers = new ArrayList<ServerAddress>(servers.size());
+			for (ServerAddress server : servers) {
+				sslPortServers.add(new ServerAddress(server.host, defaultPort));
+			}
+			return sslPortServers;
+		}
+		final List<ServerAddress> servers = DnsSrvResolver.lookup(entry);
+		Log.i(TAG, entry + " resolved to " + servers.size() + " servers");
+		return servers;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof ServerAddress && ((ServerAddress) o).host.equalsIgnoreCase(host) && ((ServerAddress) o).port == port;
+	}
+
+	@Override
+	public int hashCode() {
+		return host.toLowerCase().hashCode() * 31 + port;
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Keeps the connect and bind latency and the failures of the LDAP servers, to select the fastest healthy server. Servers with a similar latency are
+ * used in turns. A server that failed is not used for a cool-down period, that grows with every consecutive failure. The statistics are kept per
+ * host setting (see {@link #get(String)}), so every account only stores the statistics of its own servers. They can be stored as a string, so they
+ * survive a restart of the process.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class ServerStatistics {
+
+	private static final String TAG = "ServerStatistics";
+
+	public static final String PARAM_SERVER_STATISTICS = "serverStatistics";
+
+	/**
+	 * Cool-down after the first failure (1 minute), doubled for every further failure.
+	 */
+	private static final long COOL_DOWN = 60 * 1000L;
+	private static final long MAX_COOL_DOWN = 60 * 60 * 1000L;
+
+	/**
+	 * Weight of a new measurement in the moving average of the latency.
+	 */
+	private static final float SMOOTHING = 0.3f;
+
+	/**
+	 * Servers whose latency is at most 25% higher than the fastest one are used in turns.
+	 */
+	private static final float SIMILAR_LATENCY = 1.25f;
+
+	/**
+	 * The statistics by host setting.
+	 */
+	private static final HashMap<String, ServerStatistics> instances = new HashMap<String, ServerStatistics>();
+
+	private final HashMap<String, Stats> statistics = new HashMap<String, Stats>();
+	private int roundRobin = 0;
+
+	private ServerStatistics() {
+	}
+
+	/**
+	 * @param hosts
+	 *            The host setting with port and encryption, identifies the servers of an account
+	 * @return The statistics of the servers
+	 */
+	static synchronized ServerStatistics get(String hosts) {
+		ServerStatistics s = instances.get(hosts);
+		if (s == null) {
+			s = new ServerStatistics();
+			instances.put(hosts, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Orders the servers for the next connection attempt: the fastest healthy servers first (servers with similar latency in turns), then servers
+	 * without measurements in the configured order and finally the servers in cool-down.
+	 *
+	 * @param servers
+	 *            The servers in the configured order
+	 * @return The servers in the order they should be tried
+	 */
+	synchronized List<ServerAddress> order(List<ServerAddress> servers) {
+		final ArrayList<ServerAddress> ordered = new ArrayList<ServerAddress>(servers);
+		if (ordered.size() < 2) {
+			return ordered;
+		}
+		final long now = System.currentTimeMillis();
+		Collections.sort(ordered, new Comparator<ServerAddress>() {
+			public int compare(ServerAddress a, ServerAddress b) {
+				final long ra = rank(a, now);
+				final long rb = rank(b, now);
+				return ra < rb ? -1 : (ra == rb ? 0 : 1);
+			}
+		});
+		final Stats fastest = statistics.get(ordered.get(0).toString());
+		if (fastest != null && fastest.latency >= 0 && !fastest.isCoolingDown(now)) {
+			int similar = 1;
+			while (similar < ordered.size()) {
+				final Stats s = statistics.get(ordered.get(similar).toString());
+				if (s == null || s.latency < 0 || s.isCoolingDown(now) || s.latency > fastest.latency * SIMILAR_LATENCY) {
+					break;
+				}
+				similar++;
+			}
+			Collections.rotate(ordered.subList(0, similar), -(roundRobin++ % similar));
+		}
+		return ordered;
+	}
+
+	private long rank(ServerAddress server, long now) {
+		final Stats s = statistics.get(server.toString());
+		if (s == null || s.latency < 0) {
+			return Long.MAX_VALUE - 1;
+		}
+		return s.isCoolingDown(now) ? Long.MAX_VALUE : s.latency;
+	}
+
+	/**
+	 * Records a successful connect and bind.
+	 *
+	 * @param server
+	 *            The server
+	 * @param millis
+	 *            The time needed to connect and bind
+	 */
+	synchronized void connectSucceeded(ServerAddress server, long millis) {
+		final Stats s = getStats(server.toString());
+		s.latency = (s.latency < 0) ? millis : (long) (SMOOTHING * millis + (1 - SMOOTHING) * s.latency);
+		s.failures = 0;
+		s.coolDownUntil = 0;
+	}
+
+	/**
+	 * Records a failed connect or bind and starts the cool-down of the server.
+	 *
+	 * @param server
+	 *            The server
+	 */
+	synchronized void connectFailed(ServerAddress server) {
+		final Stats s = getStats(server.toString());
+		s.failures++;
+		s.coolDownUntil = System.currentTimeMillis() + Math.min(MAX_COOL_DOWN, COOL_DOWN << Math.min(s.failures - 1, 16));
+		Log.i(TAG, "Server " + server + " failed " + s.failures + " times");
+	}
+
+	private Stats getStats(String server) {
+		Stats s = statistics.get(server);
+		if (s == null) {
+			s = new Stats();
+			statistics.put(server, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Restores stored statistics. The statistics of servers that were already used by this process are kept, as they are more recent.
+	 *
+	 * @param stored
+	 *            The statistics as returned by {@link #save(List)}
+	 */
+	synchronized void load(String stored) {
+		if (TextUtils.isEmpty(stored)) {
+			return;
+		}
+		for (String entry : stored.split(";")) {
+			final int separator = entry.indexOf('=');
+			if (separator < 0 || statistics.containsKey(entry.substring(0, separator))) {
+				continue;
+			}
+			final String[] values = entry.substring(separator + 1).split(",");
+			try {
+				final Stats s = new Stats();
+				s.latency = Long.parseLong(values[0]);
+				s.failures = Integer.parseInt(values[1]);
+				s.coolDownUntil = Long.parseLong(values[2]);
+				statistics.put(entry.substring(0, separator), s);
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid statistics: " + entry);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				Log.w(TAG, "Invalid statistics: " + entry);
+			}
+		}
+	}
+
+	/**
+	 * @param servers
+	 *            The current servers of the host setting, the statistics of other servers (e.g. stored before the setting was changed) are dropped
+	 * @return The statistics of the servers as string
+	 */
+	synchronized String save(List<ServerAddress> servers) {
+		final HashSet<String> current = new HashSet<String>();
+		for (ServerAddress server : servers) {
+			current.add(server.toString());
+		}
+		statistics.keySet().retainAll(current);
+		final StringBuilder stored = new StringBuilder();
+		for (Map.Entry<String, Stats> e : statistics.entrySet()) {
+			final Stats s = e.getValue();
+			if (stored.length() > 0) {
+				stored.append(';');
+			}
+			stored.append(e.getKey()).append('=').append(s.latency).append(',').append(s.failures).append(',').append(s.coolDownUntil);
+		}
+		return stored.toString();
+	}
+
+	private static final class Stats {
+		/**
+		 * Moving average of the connect and bind time in milliseconds, -1 if unknown.
+		 */
+		private long latency = -1;
+		private int failures = 0;
+		private long coolDownUntil = 0;
+
+		private boolean isCoolingDown(long now) {
+			return coolDownUntil > now;
+		}
+	}
+}
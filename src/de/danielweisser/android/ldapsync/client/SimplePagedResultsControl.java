@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1Integer;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ResultCode;
+
+/**
+ * The simple paged results control as defined in RFC 2696. The mobile edition of the UnboundID LDAP SDK does not contain the controls package, so the
+ * control is encoded and decoded here.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class SimplePagedResultsControl extends Control {
+
+	/**
+	 * The OID of the simple paged results control.
+	 */
+	public static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+	private static final long serialVersionUID = 4830150238465391723L;
+
+	/**
+	 * Creates a new paged results request control.
+	 * 
+	 * @param pageSize
+	 *            The maximum number of entries the server should return in the next page.
+	 * @param cookie
+	 *            The cookie returned with the previous page, {@code null} for the first page.
+	 */
+	public SimplePagedResultsControl(int pageSize, byte[] cookie) {
+		super(PAGED_RESULTS_OID, false, encodeValue(pageSize, cookie));
+	}
+
+	private static ASN1OctetString encodeValue(int pageSize, byte[] cookie) {
+		final ASN1OctetString cookieElement = (cookie == null) ? new ASN1OctetString() : new ASN1OctetString(cookie);
+		return new ASN1OctetString(new ASN1Sequence(new ASN1Integer(pageSize), cookieElement).encode());
+	}
+
+	/**
+	 * Extracts the cookie from the paged results response control of a search result.
+	 * 
+	 * @param result
+	 *            The result of a paged search
+	 * @return The cookie for the next page or {@code null} if there are no more pages.
+	 * @throws LDAPException
+	 *             If the response control cannot be decoded.
+	 */
+	public static byte[] getCookie(LDAPResult result) throws LDAPException {
+		final Control c = result.getResponseControl(PAGED_RESULTS_OID);
+		if (c == null || !c.hasValue()) {
+			return null;
+		}
+		try {
+			final ASN1Element[] elements = ASN1Sequence.decodeAsSequence(c.getValue().getValue()).elements();
+			final byte[] cookie = ASN1OctetString.decodeAsOctetString(elements[1]).getValue();
+			return cookie.length == 0 ? null : cookie;
+		} catch (ASN1Exception e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode paged results control", e);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Cannot decode paged results control", e);
+		}
+	}
+}
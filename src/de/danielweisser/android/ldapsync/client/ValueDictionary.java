@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary of attribute values, that repeat across many entries (e.g. cities, countries or first names). Equal values of different contacts share
+ * a single string instance. The dictionary is bounded, values that do not fit any more are used as they are.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class ValueDictionary {
+
+	/**
+	 * Maximum number of distinct values.
+	 */
+	private static final int MAX_SIZE = 8192;
+
+	/**
+	 * Longer values are rarely repeated and are not kept.
+	 */
+	private static final int MAX_LENGTH = 64;
+
+	private final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<String, String>(256);
+
+	/**
+	 * @param value
+	 *            A value, may be {@code null}
+	 * @return The shared instance of an equal value, or the value itself
+	 */
+	String intern(String value) {
+		if (value == null) {
+			return null;
+		}
+		if (value.length() == 0) {
+			return "";
+		}
+		if (value.length() > MAX_LENGTH) {
+			return value;
+		}
+		final String shared = values.get(value);
+		if (shared != null) {
+			return shared;
+		}
+		if (values.size() >= MAX_SIZE) {
+			return value;
+		}
+		final String previous = values.putIfAbsent(value, value);
+		return (previous != null) ? previous : value;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.platform;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.content.ContentProviderOperation.Builder;
+import android.database.sqlite.SQLiteException;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Collects the operations of many contacts and applies them to the contacts provider in batches. A batch is limited by the number of operations, so
+ * it always fits into a binder transaction; the photos are written outside the batches by the {@link PhotoWriter}. The operations of a contact are
+ * never split across batches, and the provider may yield to other transactions between two contacts.
+ * <p>
+ * If a batch fails and nothing of it was committed, its contacts are applied one by one, so only the failing contacts are skipped.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class ContactBatch {
+
+	private static final String TAG = "ContactBatch";
+
+	/**
+	 * Maximum number of operations of a batch. The contacts provider accepts at most 500 operations between two yield points.
+	 */
+	static final int MAX_OPERATIONS = 100;
+
+	/**
+	 * Maximum number of operations of a batch while the contacts of a new account are loaded, see {@link ContactManager}.
+	 */
+	static final int MAX_BULK_OPERATIONS = 450;
+
+	/**
+	 * Maximum number of operations of a contact (raw contact, name, mail, three phones, address and photo).
+	 */
+	private static final int MAX_CONTACT_OPERATIONS = 9;
+
+	/**
+	 * Creates the operations of a contact. May be called again, if the contact is applied on its own after its batch failed.
+	 */
+	interface Operations {
+		/**
+		 * Adds the operations of the contact with {@link ContactBatch#add(Builder)}.
+		 */
+		void create(ContactBatch batch);
+	}
+
+	private final ContentProviderClient provider;
+	private final SyncResult syncResult;
+	private final int maxOperations;
+	private final ArrayList<ContentProviderOperation> ops;
+	private final ArrayList<PendingContact> contacts = new ArrayList<PendingContact>();
+	private int contactStart = 0;
+	private int batchCount = 0;
+	private int failedContacts = 0;
+	private int writtenContacts = 0;
+
+	/**
+	 * @param provider
+	 *            The client of the contacts provider
+	 * @param syncResult
+	 *            Receives the contacts that cannot be stored
+	 * @param maxOperations
+	 *            Maximum number of operations of a batch, {@link #MAX_OPERATIONS} or {@link #MAX_BULK_OPERATIONS}
+	 */
+	ContactBatch(ContentProviderClient provider, SyncResult syncResult, int maxOperations) {
+		this.provider = provider;
+		this.syncResult = syncResult;
+		this.maxOperations = maxOperations;
+		this.ops = new ArrayList<ContentProviderOperation>(maxOperations + MAX_CONTACT_OPERATIONS);
+	}
+
+	/**
+	 * Adds the operations of a contact. The current batch is applied first, if the contact might not fit.
+	 *
+	 * @param dn
+	 *            The DN of the contact, for logging
+	 * @param operations
+	 *            Creates the operations of the contact
+	 */
+	void addContact(String dn, Operations operations) {
+		if (!ops.isEmpty() && ops.size() + MAX_CONTACT_OPERATIONS > maxOperations) {
+			flush();
+		}
+		contactStart = ops.size();
+		operations.create(this);
+		if (ops.size() > contactStart) {
+			contacts.add(new PendingContact(dn, operations));
+		}
+	}
+
+	/**
+	 * Adds an operation of the contact that is currently added.
+	 */
+	void add(Builder operation) {
+		if (ops.size() == contactStart && contactStart > 0) {
+			// The provider may commit the previous contacts and yield, before this contact is written
+			operation.withYieldAllowed(true);
+		}
+		ops.add(operation.build());
+	}
+
+	/**
+	 * @return The index of the first operation of the contact that is currently added, for back references to the raw contact
+	 */
+	int getContactStart() {
+		return contactStart;
+	}
+
+	/**
+	 * Applies the operations that were added.
+	 */
+	void flush() {
+		if (ops.isEmpty()) {
+			return;
+		}
+		final ArrayList<PendingContact> batchContacts = new ArrayList<PendingContact>(contacts);
+		try {
+			provider.applyBatch(ops);
+			batchCount++;
+			writtenContacts += batchContacts.size();
+			clear();
+		} catch (OperationApplicationException e) {
+			clear();
+			if (e.getNumSuccessfulYieldPoints() == 0 && batchContacts.size() > 1) {
+				Log.w(TAG, "Batch of " + batchContacts.size() + " contacts failed, applying the contacts one by one", e);
+				applySeparately(batchContacts);
+			} else {
+				// Some contacts may have been committed, it is unknown which ones
+				failed(batchContacts, e);
+			}
+		} catch (RemoteException e) {
+			clear();
+			syncResult.stats.numIoExceptions++;
+			failed(batchContacts, e);
+		} catch (SQLiteException e) {
+			clear();
+			failed(batchContacts, e);
+		} catch (IllegalArgumentException e) {
+			clear();
+			failed(batchContacts, e);
+		}
+	}
+
+	/**
+	 * @return The number of batches applied successfully
+	 */
+	int getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * @return The number of contacts that were written
+	 */
+	int getWrittenContacts() {
+		return writtenContacts;
+	}
+
+	/**
+	 * @return The number of contacts that could not be stored
+	 */
+	int getFailedContacts() {
+		return failedContacts;
+	}
+
+	private void applySeparately(ArrayList<PendingContact> batchContacts) {
+		for (PendingContact contact : batchContacts) {
+			contactStart = 0;
+			contact.operations.create(this);
+			try {
+				provider.applyBatch(ops);
+				batchCount++;
+				writtenContacts++;
+			} catch (OperationApplicationException e) {
+				failed(contact, e);
+			} catch (RemoteException e) {
+				syncResult.stats.numIoExceptions++;
+				failed(contact, e);
+			} catch (SQLiteException e) {
+				failed(contact, e);
+			} catch (IllegalArgumentException e) {
+				failed(contact, e);
+			}
+			clear();
+		}
+	}
+
+	private void failed(ArrayList<PendingContact> batchContacts, Exception e) {
+		Log.e(TAG, "Batch of " + batchContacts.size() + " contacts failed", e);
+		for (PendingContact contact : batchContacts) {
+			failed(contact, null);
+		}
+	}
+
+	private void failed(PendingContact contact, Exception e) {
+		Log.e(TAG, "Cannot store contact " + contact.dn, e);
+		syncResult.stats.numSkippedEntries++;
+		failedContacts++;
+	}
+
+	private void clear() {
+		ops.clear();
+		contacts.clear();
+		contactStart = 0;
+	}
+
+	private static final class PendingContact {
+		private final String dn;
+		private final Operations operations;
+
+		private PendingContact(String dn, Operations operations) {
+			this.dn = dn;
+			this.operations = operations;
+		}
+	}
+}
@@ -17,18 +17,22 @@
 package de.danielweisser.android.ldapsync.platform;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
+import android.content.Intent;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
@@ -46,205 +50,878 @@ import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.util.Log;
 import de.danielweisser.android.ldapsync.Constants;
+import de.danielweisser.android.ldapsync.R;
 import de.danielweisser.android.ldapsync.client.Address;
 import de.danielweisser.android.ldapsync.client.Contact;
+import de.danielweisser.android.ldapsync.client.ContactListener;
 import de.danielweisser.android.ldapsync.syncadapter.Logger;
+import de.danielweisser.android.ldapsync.syncadapter.SyncService;
 
 /**
  * Class for managing contacts sync related operations
  * 
  * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
  */
-public class ContactManager {
+public class ContactManager implements ContactListener {
 	private static final String TAG = "ContactManager";
+
+	/**
+	 * The raw contacts URI of the sync adapter, shared by all operations.
+	 */
+	private static final Uri RAW_CONTACTS_URI = RawContacts.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+			.build();
+
+	private static final String BY_ID = RawContacts._ID + "=?";
+
+	private static final String BY_ACCOUNT = RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.ACCOUNT_NAME + "=?";
+
+	/**
+	 * The columns of the raw contacts: id, DN, digest, unique id, modifyTimestamp and dirty flag.
+	 */
+	private static final String[] RAW_CONTACTS_PROJECTION = new String[] { RawContacts._ID, RawContacts.SOURCE_ID, RawContacts.SYNC1, RawContacts.SYNC2,
+			RawContacts.SYNC3, RawContacts.DIRTY };
 	private Logger l;
 
+	private ContentResolver resolver;
+	private String accountName;
+	private SyncResult syncResult;
+	private ContentProviderClient provider;
+	private boolean releaseProvider;
+
+	/**
+	 * Number of contacts whose raw contacts are looked up with a single query.
+	 */
+	private static final int LOOKUP_BATCH = 100;
+
+	/**
+	 * Maximum number of raw contacts looked up by {@link #isModified(String, String, String)}, that are kept until their contacts are written.
+	 */
+	private static final int MAX_LOOKUPS = 1000;
+
+	/**
+	 * Marks a DN that is not stored on the phone.
+	 */
+	private static final StoredContact NOT_STORED = new StoredContact(-1, null, null, null, null);
+
+	/**
+	 * The contacts that wait for the lookup of their raw contacts.
+	 */
+	private ArrayList<Contact> pendingContacts;
+
+	/**
+	 * The raw contacts looked up by {@link #isModified(String, String, String)} by DN, accessed by the search and the writing thread.
+	 */
+	private final LinkedHashMap<String, StoredContact> lookups = new LinkedHashMap<String, StoredContact>(16, 0.75f, true) {
+		private static final long serialVersionUID = 5419866394215305839L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, StoredContact> eldest) {
+			return size() > MAX_LOOKUPS;
+		}
+	};
+
+	/**
+	 * The largest raw contact id of the account when the sync started, or 0 if the account had no raw contacts. Raw contacts created by the sync
+	 * have larger ids.
+	 */
+	private long lastIdBeforeSync;
+
+	/**
+	 * The ids of the raw contacts that were returned from the LDAP server, so the others can be deleted after a full sync.
+	 */
+	private long[] seenIds;
+	private int seenCount;
+
+	/**
+	 * Whether raw contacts could not be looked up, so contacts are missing and no contacts may be deleted.
+	 */
+	private boolean lookupFailed;
+
+	/**
+	 * Writes the photos after the batches, see {@link PhotoWriter}.
+	 */
+	private PhotoWriter photoWriter;
+
+	/**
+	 * The operations of the contacts, that are applied in batches.
+	 */
+	private ContactBatch batch;
+	private int failedContacts;
+
+	/**
+	 * Maximum number of raw contacts deleted with one statement (SQLite allows 999 arguments).
+	 */
+	private static final int MAX_DELETES = 500;
+
+	/**
+	 * The raw contact ids of the contacts to delete.
+	 */
+	private ArrayList<Long> pendingDeletes;
+
+	/**
+	 * Id of the notification that shows the progress of the initial load.
+	 */
+	private static final int PROGRESS_NOTIFICATION = 1;
+
+	/**
+	 * Number of written contacts between two progress notifications.
+	 */
+	private static final int PROGRESS_INTERVAL = 500;
+
+	/**
+	 * Whether the contacts of a new account are loaded, see {@link #startInitialLoad()}.
+	 */
+	private boolean initialLoad;
+	private long loadStart;
+	private int nextProgress;
+	private Context context;
+
 	public ContactManager(Logger l) {
 		this.l = l;
 	}
 
 	/**
-	 * Synchronize raw contacts
+	 * Starts the initial load of a new account, that has no contacts on the phone yet. The contacts are written in larger batches, and they are not
+	 * aggregated before the end of the sync, when the aggregation of all contacts is resumed at once.
+	 */
+	private void startInitialLoad() {
+		l.d("Initial load of the contacts");
+		initialLoad = true;
+		batch = new ContactBatch(provider, syncResult, ContactBatch.MAX_BULK_OPERATIONS);
+		loadStart = System.currentTimeMillis();
+		nextProgress = PROGRESS_INTERVAL;
+	}
+
+	/**
+	 * Turns the aggregation of all contacts of the account back on, that were loaded with aggregation suspended. Contacts of an initial load that was
+	 * aborted are aggregated by {@link #abortSync()}, or by the next sync if the process was stopped.
+	 */
+	private void resumeAggregation() {
+		final ContentValues cv = new ContentValues();
+		cv.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT);
+		try {
+			final int resumed = provider.update(RAW_CONTACTS_URI, cv, RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.ACCOUNT_NAME + "=? AND "
+					+ RawContacts.AGGREGATION_MODE + "=?", new String[] { Constants.ACCOUNT_TYPE, accountName,
+					RawContacts.AGGREGATION_MODE_SUSPENDED + "" });
+			if (resumed > 0) {
+				l.d("Aggregation of " + resumed + " contacts resumed");
+			}
+		} catch (RemoteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Shows the number of contacts written by the initial load and the throughput.
+	 */
+	private void notifyProgress(int written) {
+		final long seconds = Math.max(1, (System.currentTimeMillis() - loadStart) / 1000);
+		final NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+		final Notification notification = new Notification(R.drawable.icon, null, loadStart);
+		final PendingIntent contentIntent = PendingIntent.getService(context, 0, new Intent(context, SyncService.class),
+				PendingIntent.FLAG_UPDATE_CURRENT);
+		notification.setLatestEventInfo(context, "Loading contacts of " + accountName, written + " contacts (" + (written / seconds) + " per second)",
+				contentIntent);
+		notification.flags = Notification.FLAG_ONGOING_EVENT | Notification.FLAG_ONLY_ALERT_ONCE;
+		notificationManager.notify(PROGRESS_NOTIFICATION, notification);
+	}
+
+	/**
+	 * Starts a streaming synchronization of raw contacts. The LDAP contacts are passed in one by one with {@link #onContact(Contact)}, the sync is completed
+	 * with {@link #finishSync()}.
 	 * 
 	 * @param context
 	 *            The context of Authenticator Activity
 	 * @param accountName
 	 *            The account name
-	 * @param contacts
-	 *            The list of retrieved LDAP contacts
 	 * @param syncResult
 	 *            SyncResults for tracking the sync
 	 */
-	public synchronized void syncContacts(Context context, String accountName, List<Contact> contacts, SyncResult syncResult) {
-		final ContentResolver resolver = context.getContentResolver();
-
-		// Get all phone contacts for the LDAP account
-		HashMap<String, Long> contactsOnPhone = getAllContactsOnPhone(resolver, accountName);
-
-		// Update and create new contacts
-		for (final Contact contact : contacts) {
-			if (contactsOnPhone.containsKey(contact.getDn())) {
-				Long contactId = contactsOnPhone.get(contact.getDn());
-				Log.d(TAG, "Update contact: " + contact.getDn());
-				l.d("Update contact: " + contact.getDn() + " " + contact.getFirstName() + " " + contact.getLastName() + " (" + contactId + ")");
-				updateContact(resolver, contactId, contact);
-				syncResult.stats.numUpdates++;
-				contactsOnPhone.remove(contact.getDn());
-			} else {
-				Log.d(TAG, "Add contact: " + contact.getFirstName() + " " + contact.getLastName());
-				l.d("Add contact: " + contact.getFirstName() + " " + contact.getLastName());
-				addContact(resolver, accountName, contact);
-				syncResult.stats.numInserts++;
+	public synchronized void startSync(Context context, String accountName, SyncResult syncResult) {
+		startSync(context, null, accountName, syncResult);
+	}
+
+	/**
+	 * Starts a streaming synchronization of raw contacts, see {@link #startSync(Context, String, SyncResult)}. The raw contacts are not read in
+	 * advance, they are looked up by DN for every {@value #LOOKUP_BATCH} contacts with a single query. The data rows are only read for contacts whose
+	 * digest changed, with a query per contact or, if many contacts changed, a single query for all.
+	 * 
+	 * @param context
+	 *            The context of Authenticator Activity
+	 * @param provider
+	 *            The client of the contacts provider of the sync, a client is acquired if {@code null}
+	 * @param accountName
+	 *            The account name
+	 * @param syncResult
+	 *            SyncResults for tracking the sync
+	 */
+	public synchronized void startSync(Context context, ContentProviderClient provider, String accountName, SyncResult syncResult) {
+		init(context, provider, accountName, syncResult);
+		try {
+			lastIdBeforeSync = getLastRawContactId();
+			if (lastIdBeforeSync == 0) {
+				startInitialLoad();
 			}
+		} catch (RemoteException e) {
+			Log.e(TAG, e.getMessage(), e);
+			lastIdBeforeSync = Long.MAX_VALUE;
+			lookupFailed = true;
 		}
+	}
+
+	private void init(Context context, ContentProviderClient provider, String accountName, SyncResult syncResult) {
+		this.context = context;
+		this.resolver = context.getContentResolver();
+		this.accountName = accountName;
+		this.syncResult = syncResult;
+		this.releaseProvider = (provider == null);
+		this.provider = (provider != null) ? provider : resolver.acquireContentProviderClient(ContactsContract.AUTHORITY_URI);
 
-		// Delete contacts
-		for (Entry<String, Long> contact : contactsOnPhone.entrySet()) {
-			Log.d(TAG, "Delete contact: " + contact.getKey());
-			deleteContact(resolver, contact.getValue());
-			l.d("Delete contact: " + contact.getKey() + "(" + contact.getValue() + ")");
-			syncResult.stats.numDeletes++;
+		this.pendingContacts = new ArrayList<Contact>(LOOKUP_BATCH);
+		synchronized (lookups) {
+			lookups.clear();
 		}
+		this.seenIds = new long[LOOKUP_BATCH];
+		this.seenCount = 0;
+		this.lookupFailed = false;
+		this.batch = new ContactBatch(this.provider, syncResult, ContactBatch.MAX_OPERATIONS);
+		this.photoWriter = new PhotoWriter(context, accountName);
+		this.initialLoad = false;
+		this.failedContacts = 0;
+		this.pendingDeletes = new ArrayList<Long>();
 	}
 
-	private void updateContact(ContentResolver resolver, long rawContactId, Contact contact) {
-		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+	/**
+	 * Updates or creates a single contact of a sync started with {@link #startSync(Context, String, SyncResult)}. The contact is written with the
+	 * next {@value #LOOKUP_BATCH} contacts.
+	 * 
+	 * @param contact
+	 *            The retrieved LDAP contact
+	 */
+	public synchronized void onContact(Contact contact) {
+		pendingContacts.add(contact);
+		if (pendingContacts.size() >= LOOKUP_BATCH) {
+			writePendingContacts();
+		}
+	}
 
-		Contact existingContact = new Contact();
+	/**
+	 * Marks an unchanged contact of a sync started with {@link #startSync(Context, String, SyncResult)} as present, so it is not deleted by
+	 * {@link #finishSync(boolean)}.
+	 */
+	public synchronized void onContactUnchanged(String dn, String uuid) {
+		writePendingContacts();
+		final StoredContact stored = lookUp(dn, uuid);
+		if (stored != null) {
+			markSeen(stored.id);
+		}
+	}
 
-		final String selection = Data.RAW_CONTACT_ID + "=?";
-		final String[] projection = new String[] { Data.MIMETYPE, Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA7, Data.DATA8, Data.DATA9,
-				Data.DATA10, Data.DATA15 };
-		
-		try {
-			final Cursor c = resolver.query(Data.CONTENT_URI, projection, selection, new String[] { rawContactId + "" }, null);
+	/**
+	 * Deletes a single contact of a sync started with {@link #startSync(Context, String, SyncResult)}.
+	 */
+	public synchronized void onContactDeleted(String dn, String uuid) {
+		// The contact may have been returned before it was deleted
+		writePendingContacts();
+		final StoredContact stored = lookUp(dn, uuid);
+		if (stored != null) {
+			Log.d(TAG, "Delete contact: " + stored.dn);
+			l.d("Delete contact: " + stored.dn + "(" + stored.id + ")");
+			markSeen(stored.id);
+			pendingDeletes.add(stored.id);
+			if (pendingDeletes.size() >= MAX_DELETES) {
+				// The operations of the contacts may refer to the deleted contacts
+				batch.flush();
+				deleteContacts();
+			}
+		}
+	}
 
-			if (c != null) {
-				while (c.moveToNext()) {
-					String mimetype = c.getString(c.getColumnIndex(Data.MIMETYPE));
-					if (mimetype.equals(StructuredName.CONTENT_ITEM_TYPE)) {
-						existingContact.setFirstName(c.getString(c.getColumnIndex(Data.DATA2)));
-						existingContact.setLastName(c.getString(c.getColumnIndex(Data.DATA3)));
-					} else if (mimetype.equals(Email.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						if (type == Email.TYPE_WORK) {
-							String[] mails = new String[] { c.getString(c.getColumnIndex(Data.DATA1)) };
-							existingContact.setEmails(mails);
-						}
-					} else if (mimetype.equals(Phone.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						if (type == Phone.TYPE_WORK_MOBILE) {
-							existingContact.setCellWorkPhone(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Phone.TYPE_WORK) {
-							existingContact.setWorkPhone(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Phone.TYPE_HOME) {
-							existingContact.setHomePhone(c.getString(c.getColumnIndex(Data.DATA1)));
-						}
-					} else if (mimetype.equals(Photo.CONTENT_ITEM_TYPE)) {
-						existingContact.setImage(c.getBlob(c.getColumnIndex(Photo.PHOTO)));
-					} else if (mimetype.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						Address address = new Address();
-						address.setStreet(c.getString(c.getColumnIndex(Data.DATA4)));
-						address.setCity(c.getString(c.getColumnIndex(Data.DATA7)));
-						address.setCountry(c.getString(c.getColumnIndex(Data.DATA10)));
-						address.setZip(c.getString(c.getColumnIndex(Data.DATA9)));
-						address.setState(c.getString(c.getColumnIndex(Data.DATA8)));
-						if (type == StructuredPostal.TYPE_WORK) {
-							existingContact.setAddress(address);
-						}
-					}
+	/**
+	 * Not synchronized, so the search is not blocked while contacts are written. The raw contact is looked up by DN, or by the unique id if the entry
+	 * was renamed, and kept for {@link #onContact(Contact)}. The stored timestamps are not changed before the contact is written.
+	 */
+	public boolean isModified(String dn, String uuid, String modifyTimestamp) {
+		final ContentProviderClient client = provider;
+		if (modifyTimestamp == null || dn == null || client == null || lastIdBeforeSync == 0) {
+			return true;
+		}
+		StoredContact stored;
+		synchronized (lookups) {
+			stored = lookups.get(dn);
+		}
+		if (stored == null) {
+			final HashMap<String, StoredContact> found = new HashMap<String, StoredContact>();
+			try {
+				queryStoredContacts(client, RawContacts.SOURCE_ID, Collections.singletonList(dn), found);
+				if (!found.containsKey(dn) && uuid != null) {
+					queryStoredContacts(client, RawContacts.SYNC2, Collections.singletonList(uuid), found);
 				}
+			} catch (RemoteException e) {
+				Log.e(TAG, e.getMessage(), e);
+				return true;
 			}
-
-			prepareFields(rawContactId, contact, existingContact, ops, false);
-
-			if (ops.size() > 0) {
-				resolver.applyBatch(ContactsContract.AUTHORITY, ops);
+			stored = found.containsKey(dn) ? found.get(dn) : (uuid != null && found.containsKey(uuid)) ? found.get(uuid) : NOT_STORED;
+			synchronized (lookups) {
+				lookups.put(dn, stored);
 			}
+		}
+		return !modifyTimestamp.equals(stored.timestamp);
+	}
+
+	/**
+	 * Looks up the raw contacts of the pending contacts and updates or creates them. The data rows of the contacts whose digest changed are read with
+	 * a single query.
+	 */
+	private void writePendingContacts() {
+		if (pendingContacts.isEmpty()) {
+			return;
+		}
+		final int count = pendingContacts.size();
+		final String[] dns = new String[count];
+		final String[] uuids = new String[count];
+		for (int i = 0; i < count; i++) {
+			dns[i] = pendingContacts.get(i).getDn();
+			uuids[i] = pendingContacts.get(i).getUuid();
+		}
+		final StoredContact[] stored;
+		try {
+			stored = lookUp(dns, uuids);
 		} catch (RemoteException e) {
 			Log.e(TAG, e.getMessage(), e);
-		} catch (OperationApplicationException e) {
+			syncResult.stats.numIoExceptions++;
+			// The contacts are written by the next full sync
+			failedContacts += count;
+			lookupFailed = true;
+			pendingContacts.clear();
+			return;
+		}
+		final String[] digests = new String[count];
+		final ArrayList<Long> changedIds = new ArrayList<Long>();
+		for (int i = 0; i < count; i++) {
+			if (stored[i] != null) {
+				digests[i] = pendingContacts.get(i).getDigest(stored[i].digest);
+				if (!digests[i].equals(stored[i].digest)) {
+					changedIds.add(stored[i].id);
+				}
+			}
+		}
+		HashMap<Long, ExistingContact> data = new HashMap<Long, ExistingContact>();
+		try {
+			getData(provider, changedIds, data);
+		} catch (RemoteException e) {
 			Log.e(TAG, e.getMessage(), e);
+			syncResult.stats.numIoExceptions++;
+			data = null;
 		} catch (SQLiteException e) {
 			Log.e(TAG, e.getMessage(), e);
+			data = null;
 		} catch (IllegalStateException e) {
 			Log.e(TAG, e.getMessage(), e);
+			data = null;
+		}
+		for (int i = 0; i < count; i++) {
+			final Contact contact = pendingContacts.get(i);
+			if (stored[i] != null) {
+				final String uuid = contact.getUuid();
+				final String storedUuid = (uuid != null && uuid.equals(stored[i].uuid)) ? uuid : null;
+				markSeen(stored[i].id);
+				updateContact(stored[i].id, stored[i].dn, storedUuid, stored[i].timestamp, stored[i].digest, digests[i], contact, data);
+			} else {
+				Log.d(TAG, "Add contact: " + contact.getFirstName() + " " + contact.getLastName());
+				l.d("Add contact: " + contact.getFirstName() + " " + contact.getLastName());
+				addContact(accountName, contact);
+				syncResult.stats.numInserts++;
+			}
 		}
+		pendingContacts.clear();
 	}
 
-	private void deleteContact(ContentResolver resolver, Long rawContactId) {
+	/**
+	 * Looks up the raw contact of a single LDAP entry, see {@link #lookUp(String[], String[])}.
+	 * 
+	 * @return The raw contact or {@code null} if the entry is not stored or the lookup failed
+	 */
+	private StoredContact lookUp(String dn, String uuid) {
 		try {
-			resolver.delete(RawContacts.CONTENT_URI, RawContacts.CONTACT_ID + "=?", new String[] { "" + rawContactId });
-		} catch (SQLiteException e) {
+			return lookUp(new String[] { dn }, new String[] { uuid })[0];
+		} catch (RemoteException e) {
 			Log.e(TAG, e.getMessage(), e);
-		} catch (IllegalStateException e) {
+			syncResult.stats.numIoExceptions++;
+			lookupFailed = true;
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the raw contacts under which LDAP entries are stored on the phone. The DN of an entry is preferred, the unique id is used for renamed
+	 * entries and for notifications that do not contain a DN.
+	 * 
+	 * @param dns
+	 *            The DNs of the entries, may contain {@code null}
+	 * @param uuids
+	 *            The unique ids of the entries, may contain {@code null}
+	 * @return The raw contacts of the entries, {@code null} for entries that are not stored
+	 */
+	private StoredContact[] lookUp(String[] dns, String[] uuids) throws RemoteException {
+		final StoredContact[] stored = new StoredContact[dns.length];
+		if (lastIdBeforeSync == 0) {
+			// Initial load
+			return stored;
+		}
+		final HashMap<String, StoredContact> byDn = new HashMap<String, StoredContact>();
+		final ArrayList<String> queryDns = new ArrayList<String>();
+		synchronized (lookups) {
+			for (String dn : dns) {
+				if (dn != null && !byDn.containsKey(dn)) {
+					// Looked up by isModified, the raw contact is changed by this contact
+					final StoredContact s = lookups.remove(dn);
+					if (s != null) {
+						byDn.put(dn, s);
+					} else {
+						queryDns.add(dn);
+					}
+				}
+			}
+		}
+		queryStoredContacts(provider, RawContacts.SOURCE_ID, queryDns, byDn);
+
+		final HashMap<String, StoredContact> byUuid = new HashMap<String, StoredContact>();
+		final ArrayList<String> queryUuids = new ArrayList<String>();
+		for (int i = 0; i < dns.length; i++) {
+			final StoredContact s = (dns[i] != null) ? byDn.get(dns[i]) : null;
+			if ((s == null || s == NOT_STORED) && uuids[i] != null) {
+				queryUuids.add(uuids[i]);
+			}
+		}
+		queryStoredContacts(provider, RawContacts.SYNC2, queryUuids, byUuid);
+
+		for (int i = 0; i < dns.length; i++) {
+			StoredContact s = (dns[i] != null) ? byDn.get(dns[i]) : null;
+			if ((s == null || s == NOT_STORED) && uuids[i] != null) {
+				s = byUuid.get(uuids[i]);
+			}
+			stored[i] = (s != NOT_STORED) ? s : null;
+		}
+		return stored;
+	}
+
+	/**
+	 * Reads the raw contacts of the account with the given values of a column.
+	 * 
+	 * @param column
+	 *            {@code SOURCE_ID} (DN) or {@code SYNC2} (unique id)
+	 * @param stored
+	 *            Is filled with the raw contacts by the value of the column
+	 */
+	private void queryStoredContacts(ContentProviderClient client, String column, List<String> values, HashMap<String, StoredContact> stored)
+			throws RemoteException {
+		for (int start = 0; start < values.size(); start += LOOKUP_BATCH) {
+			final int end = Math.min(start + LOOKUP_BATCH, values.size());
+			final StringBuilder selection = new StringBuilder(BY_ACCOUNT + " AND " + column + " IN (");
+			final String[] selectionArgs = new String[end - start + 2];
+			selectionArgs[0] = Constants.ACCOUNT_TYPE;
+			selectionArgs[1] = accountName;
+			for (int i = start; i < end; i++) {
+				selection.append(i > start ? ",?" : "?");
+				selectionArgs[i - start + 2] = values.get(i);
+			}
+			selection.append(')');
+			final Cursor c = client.query(RawContacts.CONTENT_URI, RAW_CONTACTS_PROJECTION, selection.toString(), selectionArgs, null);
+			if (c == null) {
+				// The contacts would be added a second time
+				throw new RemoteException();
+			}
+			try {
+				while (c.moveToNext()) {
+					final StoredContact s = new StoredContact(c);
+					final String key = column.equals(RawContacts.SOURCE_ID) ? s.dn : s.uuid;
+					if (key != null && !stored.containsKey(key)) {
+						stored.put(key, s);
+					}
+				}
+			} finally {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * @return The largest raw contact id of the account or 0 if the account has no raw contacts
+	 */
+	private long getLastRawContactId() throws RemoteException {
+		final Cursor c = provider.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID }, BY_ACCOUNT, new String[] { Constants.ACCOUNT_TYPE,
+				accountName }, RawContacts._ID + " DESC");
+		if (c == null) {
+			throw new RemoteException();
+		}
+		try {
+			return c.moveToFirst() ? c.getLong(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	private void markSeen(long rawContactId) {
+		if (seenCount == seenIds.length) {
+			final long[] ids = new long[seenIds.length * 2];
+			System.arraycopy(seenIds, 0, ids, 0, seenCount);
+			seenIds = ids;
+		}
+		seenIds[seenCount++] = rawContactId;
+	}
+
+	/**
+	 * Deletes the raw contacts of the account that existed before the sync and were not returned from the LDAP server. The raw contacts are read
+	 * with a cursor, they are not kept in memory.
+	 */
+	private void deleteMissingContacts() {
+		final long[] seen = new long[seenCount];
+		System.arraycopy(seenIds, 0, seen, 0, seenCount);
+		Arrays.sort(seen);
+		Cursor c = null;
+		try {
+			c = provider.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID, RawContacts.SOURCE_ID }, BY_ACCOUNT + " AND "
+					+ RawContacts._ID + "<=?", new String[] { Constants.ACCOUNT_TYPE, accountName, lastIdBeforeSync + "" }, null);
+			while (c != null && c.moveToNext()) {
+				final long id = c.getLong(0);
+				if (Arrays.binarySearch(seen, id) < 0) {
+					Log.d(TAG, "Delete contact: " + c.getString(1));
+					l.d("Delete contact: " + c.getString(1) + "(" + id + ")");
+					pendingDeletes.add(id);
+				}
+			}
+		} catch (RemoteException e) {
 			Log.e(TAG, e.getMessage(), e);
+			syncResult.stats.numIoExceptions++;
+			pendingDeletes.clear();
+		} finally {
+			if (c != null) {
+				c.close();
+			}
 		}
 	}
 
 	/**
-	 * Retrieves all contacts that are on the phone for this account.
+	 * @return The number of contacts of the last sync that could not be stored, see {@link #finishSync(boolean)}
+	 */
+	public synchronized int getFailedContacts() {
+		return failedContacts;
+	}
+
+	/**
+	 * Finishes a sync started with {@link #startSync(Context, String, SyncResult)} and deletes all contacts that were not returned from the LDAP server.
+	 * Must only be called if all LDAP contacts were retrieved successfully.
+	 */
+	public synchronized void finishSync() {
+		finishSync(true);
+	}
+
+	/**
+	 * Finishes a sync started with {@link #startSync(Context, String, SyncResult)}. The remaining operations of the contacts are applied.
 	 * 
-	 * @return
+	 * @param deleteMissing
+	 *            {@code true} to delete all contacts that were not returned from the LDAP server (full sync), {@code false} if only the changed LDAP
+	 *            entries were retrieved (incremental sync).
 	 */
-	private static HashMap<String, Long> getAllContactsOnPhone(ContentResolver resolver, String accountName) {
-		final String[] projection = new String[] { RawContacts._ID, RawContacts.SYNC1, RawContacts.SOURCE_ID };
-		final String selection = RawContacts.ACCOUNT_NAME + "=?";
+	public synchronized void finishSync(boolean deleteMissing) {
+		writePendingContacts();
+		batch.flush();
+		failedContacts += batch.getFailedContacts();
+		l.d(batch.getBatchCount() + " batches applied, " + failedContacts + " contacts failed");
+		if (initialLoad) {
+			final long millis = Math.max(1, System.currentTimeMillis() - loadStart);
+			l.d(batch.getWrittenContacts() + " contacts loaded in " + millis + " ms (" + batch.getWrittenContacts() * 1000L / millis + " per second)");
+			((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE)).cancel(PROGRESS_NOTIFICATION);
+			initialLoad = false;
+		}
+		batch = null;
+		if (deleteMissing && lookupFailed) {
+			l.d("Not all contacts were looked up, no contacts are deleted");
+		} else if (deleteMissing) {
+			deleteMissingContacts();
+		}
+		deleteContacts();
+		pendingDeletes = null;
+		resumeAggregation();
+		// The photos are written last, so they do not hold up the text fields
+		final int photos = photoWriter.writeAll(provider);
+		l.d(photos + " photos written");
+		photoWriter = null;
+		pendingContacts = null;
+		synchronized (lookups) {
+			lookups.clear();
+		}
+		seenIds = null;
+		if (releaseProvider && provider != null) {
+			provider.release();
+		}
+		provider = null;
+	}
 
-		final Cursor c = resolver.query(RawContacts.CONTENT_URI, projection, selection, new String[] { accountName }, null);
-		HashMap<String, Long> contactsOnPhone = new HashMap<String, Long>();
-		if (c != null) {
+	/**
+	 * Ends a sync that was started, but not finished with {@link #finishSync(boolean)}, as the LDAP contacts could not be retrieved or written. No
+	 * contacts are deleted. The progress notification of an initial load is removed and the aggregation of the contacts loaded so far is resumed.
+	 * Does nothing if the sync was finished.
+	 */
+	public synchronized void abortSync() {
+		if (provider == null) {
+			return;
+		}
+		if (initialLoad) {
+			((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE)).cancel(PROGRESS_NOTIFICATION);
+			initialLoad = false;
+		}
+		resumeAggregation();
+		batch = null;
+		pendingDeletes = null;
+		photoWriter = null;
+		pendingContacts = null;
+		synchronized (lookups) {
+			lookups.clear();
+		}
+		seenIds = null;
+		if (releaseProvider) {
+			provider.release();
+		}
+		provider = null;
+	}
+
+	/**
+	 * Updates a contact, if it was renamed or changed.
+	 * 
+	 * @param storedDn
+	 *            The DN stored with the raw contact
+	 * @param storedUuid
+	 *            The unique id stored with the raw contact or {@code null}
+	 * @param storedTimestamp
+	 *            The modifyTimestamp stored with the raw contact or {@code null}
+	 * @param storedDigest
+	 *            The digest stored with the raw contact or {@code null}
+	 * @param digest
+	 *            The digest of the contact
+	 * @param data
+	 *            The data of the changed contacts by raw contact id or {@code null} if it could not be read
+	 */
+	private void updateContact(long contactId, String storedDn, String storedUuid, String storedTimestamp, String storedDigest, String digest,
+			Contact contact, HashMap<Long, ExistingContact> data) {
+		final boolean dataChanged = !digest.equals(storedDigest);
+		// The entry was renamed, changed or its unique id is not stored yet
+		final boolean rawContactChanged = dataChanged || !contact.getDn().equals(storedDn)
+				|| (contact.getUuid() != null && !contact.getUuid().equals(storedUuid))
+				|| (contact.getModifyTimestamp() != null && !contact.getModifyTimestamp().equals(storedTimestamp));
+		if (rawContactChanged) {
+			Log.d(TAG, "Update contact: " + contact.getDn());
+			l.d("Update contact: " + contact.getDn() + " " + contact.getFirstName() + " " + contact.getLastName() + " (" + contactId + ")");
+			if (dataChanged && data == null) {
+				// The data rows would be added a second time, the contact is written by the next full sync
+				failedContacts++;
+				return;
+			}
+			updateContact(contactId, contact, digest, dataChanged ? data.get(contactId) : null, dataChanged);
+			syncResult.stats.numUpdates++;
+		}
+	}
+
+	/**
+	 * Updates a contact. The data rows are only merged, if the digest of the contact changed.
+	 * 
+	 * @param existingContact
+	 *            The data of the contact on the phone or {@code null} if it has no data rows
+	 */
+	private void updateContact(final long rawContactId, final Contact contact, final String digest, ExistingContact existingContact,
+			final boolean dataChanged) {
+		if (dataChanged && existingContact == null) {
+			existingContact = new ExistingContact();
+		}
+
+		final ExistingContact existingC = existingContact;
+		batch.addContact(contact.getDn(), new ContactBatch.Operations() {
+			public void create(ContactBatch batch) {
+				updateRawContact(batch, rawContactId, contact, digest);
+				if (existingC != null) {
+					prepareFields(rawContactId, contact, existingC, batch);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Deletes the raw contacts in {@link #pendingDeletes} with a statement per {@value #MAX_DELETES} contacts. As the sync adapter deletes them, the
+	 * raw contacts are removed at once instead of being marked as deleted.
+	 */
+	private void deleteContacts() {
+		for (int start = 0; start < pendingDeletes.size(); start += MAX_DELETES) {
+			final int end = Math.min(start + MAX_DELETES, pendingDeletes.size());
+			final StringBuilder selection = new StringBuilder(RawContacts._ID + " IN (");
+			final String[] selectionArgs = new String[end - start];
+			for (int i = start; i < end; i++) {
+				selection.append(i > start ? ",?" : "?");
+				selectionArgs[i - start] = pendingDeletes.get(i).toString();
+			}
+			selection.append(')');
+			try {
+				final int deleted = provider.delete(RAW_CONTACTS_URI, selection.toString(), selectionArgs);
+				syncResult.stats.numDeletes += deleted;
+				l.d(deleted + " contacts deleted");
+			} catch (RemoteException e) {
+				Log.e(TAG, e.getMessage(), e);
+				syncResult.stats.numIoExceptions++;
+			} catch (SQLiteException e) {
+				Log.e(TAG, e.getMessage(), e);
+			} catch (IllegalStateException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+		pendingDeletes.clear();
+	}
+
+	/**
+	 * Reads the data rows of the contacts with a single query. The rows are ordered by raw contact, so every contact is complete when the rows of the
+	 * next one start. The photos are not read, only the hashes stored with them.
+	 * 
+	 * @param rawContactIds
+	 *            The ids of the raw contacts, at most {@value #LOOKUP_BATCH}
+	 * @param existingContacts
+	 *            Is filled with the data of the contacts by raw contact id, contacts without data rows are missing
+	 * @throws RemoteException
+	 *             If the data cannot be read
+	 */
+	private static void getData(ContentProviderClient provider, List<Long> rawContactIds, HashMap<Long, ExistingContact> existingContacts)
+			throws RemoteException {
+		if (rawContactIds.isEmpty()) {
+			return;
+		}
+		final String[] projection = new String[] { Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA7,
+				Data.DATA8, Data.DATA9, Data.DATA10, Data._ID, Data.SYNC1 };
+		final String[] mimetypes = new String[] { StructuredName.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE,
+				Photo.CONTENT_ITEM_TYPE, StructuredPostal.CONTENT_ITEM_TYPE };
+		final StringBuilder selection = new StringBuilder(Data.RAW_CONTACT_ID + " IN (");
+		final String[] args = new String[rawContactIds.size() + mimetypes.length];
+		for (int i = 0; i < rawContactIds.size(); i++) {
+			selection.append(i > 0 ? ",?" : "?");
+			args[i] = rawContactIds.get(i).toString();
+		}
+		selection.append(") AND " + Data.MIMETYPE + " IN (?,?,?,?,?)");
+		System.arraycopy(mimetypes, 0, args, rawContactIds.size(), mimetypes.length);
+
+		final Cursor c = provider.query(Data.CONTENT_URI, projection, selection.toString(), args, Data.RAW_CONTACT_ID);
+		if (c == null) {
+			// The contacts would appear to have no data rows, and their rows would be added a second time
+			throw new RemoteException();
+		}
+		try {
+			// The indexes of the projection
+			final int rawContactIdColumn = 0, mimetypeColumn = 1, data1 = 2, data2 = 3, data3 = 4, data4 = 5, data7 = 6, data8 = 7, data9 = 8, data10 = 9;
+			final int idColumn = 10, sync1 = 11;
+			long currentId = -1;
+			ExistingContact existingContact = null;
 			while (c.moveToNext()) {
-				contactsOnPhone.put(c.getString(c.getColumnIndex(RawContacts.SOURCE_ID)), c.getLong(c.getColumnIndex(Data._ID)));
+				final long rawContactId = c.getLong(rawContactIdColumn);
+				if (rawContactId != currentId) {
+					currentId = rawContactId;
+					existingContact = new ExistingContact();
+					existingContacts.put(rawContactId, existingContact);
+				}
+				final String mimetype = c.getString(mimetypeColumn);
+				final long dataId = c.getLong(idColumn);
+				if (mimetype.equals(StructuredName.CONTENT_ITEM_TYPE)) {
+					existingContact.setFirstName(c.getString(data2));
+					existingContact.setLastName(c.getString(data3));
+					existingContact.setNameId(dataId);
+				} else if (mimetype.equals(Email.CONTENT_ITEM_TYPE)) {
+					if (c.getInt(data2) == Email.TYPE_WORK) {
+						existingContact.setEmails(new String[] { c.getString(data1) });
+						existingContact.setMailId(dataId);
+					}
+				} else if (mimetype.equals(Phone.CONTENT_ITEM_TYPE)) {
+					final int type = c.getInt(data2);
+					existingContact.setPhoneId(type, dataId);
+					if (type == Phone.TYPE_WORK_MOBILE) {
+						existingContact.setCellWorkPhone(c.getString(data1));
+					} else if (type == Phone.TYPE_WORK) {
+						existingContact.setWorkPhone(c.getString(data1));
+					} else if (type == Phone.TYPE_HOME) {
+						existingContact.setHomePhone(c.getString(data1));
+					}
+				} else if (mimetype.equals(Photo.CONTENT_ITEM_TYPE)) {
+					existingContact.setPhotoId(dataId);
+					existingContact.setPhotoHash(c.getString(sync1));
+				} else if (mimetype.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
+					if (c.getInt(data2) == StructuredPostal.TYPE_WORK) {
+						final Address address = new Address();
+						address.setStreet(c.getString(data4));
+						address.setCity(c.getString(data7));
+						address.setCountry(c.getString(data10));
+						address.setZip(c.getString(data9));
+						address.setState(c.getString(data8));
+						existingContact.setAddress(address);
+						existingContact.setAddressId(dataId);
+					}
+				}
 			}
+		} finally {
 			c.close();
 		}
-		return contactsOnPhone;
 	}
 
-	private Uri addCallerIsSyncAdapterFlag(Uri uri) {
-		Uri.Builder b = uri.buildUpon();
-		b.appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true");
-		return b.build();
+	/**
+	 * Stores the current DN, the unique id and the modifyTimestamp of the LDAP entry and the digest of the contact in the raw contact.
+	 */
+	private void updateRawContact(ContactBatch batch, long rawContactId, Contact contact, String digest) {
+		ContentValues cv = new ContentValues();
+		cv.put(RawContacts.SOURCE_ID, contact.getDn());
+		cv.put(RawContacts.SYNC1, digest);
+		cv.put(RawContacts.DIRTY, 0);
+		if (contact.getUuid() != null) {
+			cv.put(RawContacts.SYNC2, contact.getUuid());
+		}
+		if (contact.getModifyTimestamp() != null) {
+			cv.put(RawContacts.SYNC3, contact.getModifyTimestamp());
+		}
+		batch.add(ContentProviderOperation.newUpdate(RAW_CONTACTS_URI).withValues(cv).withSelection(BY_ID, new String[] { rawContactId + "" }));
 	}
 
 	/**
 	 * Add a new contact to the RawContacts table.
 	 * 
-	 * @param resolver
 	 * @param accountName
 	 * @param contact
 	 */
-	private void addContact(ContentResolver resolver, String accountName, Contact contact) {
-		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
-
-		Uri uri = addCallerIsSyncAdapterFlag(RawContacts.CONTENT_URI);
-
-		ContentValues cv = new ContentValues();
+	private void addContact(String accountName, final Contact contact) {
+		final ContentValues cv = new ContentValues();
 		cv.put(RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
 		cv.put(RawContacts.ACCOUNT_NAME, accountName);
 		cv.put(RawContacts.SOURCE_ID, contact.getDn());
+		cv.put(RawContacts.SYNC1, contact.getDigest(null));
+		if (initialLoad) {
+			cv.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
+		}
+		if (contact.getUuid() != null) {
+			cv.put(RawContacts.SYNC2, contact.getUuid());
+		}
+		if (contact.getModifyTimestamp() != null) {
+			cv.put(RawContacts.SYNC3, contact.getModifyTimestamp());
+		}
 
-		// This is the first insert into the raw contacts table
-		ContentProviderOperation i1 = ContentProviderOperation.newInsert(uri).withValues(cv).build();
-		ops.add(i1);
-
-		prepareFields(-1, contact, new Contact(), ops, true);
-
-		// Now create the contact with a single batch operation
-		try {
-			ContentProviderResult[] res = resolver.applyBatch(ContactsContract.AUTHORITY, ops);
-			// The first insert is the one generating the ID for this contact
-			long id = ContentUris.parseId(res[0].uri);
-			l.d("The new contact has id: " + id);
-		} catch (Exception e) {
-			Log.e(TAG, "Cannot create contact ", e);
+		// The contact is created with the next batch
+		batch.addContact(contact.getDn(), new ContactBatch.Operations() {
+			public void create(ContactBatch batch) {
+				// This is the first insert into the raw contacts table, the data rows refer to it
+				batch.add(ContentProviderOperation.newInsert(RAW_CONTACTS_URI).withValues(cv));
+				prepareFields(-1, contact, new ExistingContact(), batch);
+			}
+		});
+		if (initialLoad && batch.getWrittenContacts() >= nextProgress) {
+			notifyProgress(batch.getWrittenContacts());
+			nextProgress = batch.getWrittenContacts() + PROGRESS_INTERVAL;
 		}
 	}
 
-	private void prepareFields(long rawContactId, Contact newC, Contact existingC, ArrayList<ContentProviderOperation> ops, boolean isNew) {
-		ContactMerger contactMerger = new ContactMerger(rawContactId, newC, existingC, ops, l);
+	private void prepareFields(long rawContactId, Contact newC, ExistingContact existingC, ContactBatch batch) {
+		ContactMerger contactMerger = new ContactMerger(rawContactId, newC, existingC, batch, photoWriter, l);
 		contactMerger.updateName();
 		contactMerger.updateMail(Email.TYPE_WORK);
 
@@ -254,7 +931,9 @@ public class ContactManager {
 
 		contactMerger.updateAddress(StructuredPostal.TYPE_WORK);
 
-		contactMerger.updatePicture();
+		if (newC.isImageLoaded()) {
+			contactMerger.updatePicture();
+		}
 	}
 
 	public static void makeGroupVisible(String accountName, ContentResolver resolver) {
@@ -269,4 +948,35 @@ public class ContactManager {
 			Log.d(TAG, "Cannot make the Group Visible");
 		}
 	}
+
+	/**
+	 * A raw contact of the account as stored by the previous syncs.
+	 */
+	private static final class StoredContact {
+		private final long id;
+		private final String dn;
+		private final String uuid;
+		private final String timestamp;
+
+		/**
+		 * The digest of the contact or {@code null} if unknown or the contact was edited on the phone.
+		 */
+		private final String digest;
+
+		private StoredContact(long id, String dn, String uuid, String timestamp, String digest) {
+			this.id = id;
+			this.dn = dn;
+			this.uuid = uuid;
+			this.timestamp = timestamp;
+			this.digest = digest;
+		}
+
+		/**
+		 * Reads a raw contact from a cursor of {@link ContactManager#RAW_CONTACTS_PROJECTION}.
+		 */
+		private StoredContact(Cursor c) {
+			// The digest of a contact edited on the phone does not describe its data
+			this(c.getLong(0), c.getString(1), c.getString(3), c.getString(4), (c.getInt(5) == 0) ? c.getString(2) : null);
+		}
+	}
 }
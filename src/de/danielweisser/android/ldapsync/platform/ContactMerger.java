@@ -16,9 +16,6 @@
 
 package de.danielweisser.android.ldapsync.platform;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.ContentProviderOperation.Builder;
@@ -27,70 +24,88 @@ import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.text.TextUtils;
 import de.danielweisser.android.ldapsync.client.Address;
 import de.danielweisser.android.ldapsync.client.Contact;
+import de.danielweisser.android.ldapsync.client.PhotoCache;
 import de.danielweisser.android.ldapsync.syncadapter.Logger;
 
 /**
- * A helper class that merges the fields of existing contacts with the fields of new contacts.
+ * A helper class that merges the fields of existing contacts with the fields of new contacts. Existing data rows are updated and deleted by their id.
  * 
  * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
  */
 public class ContactMerger {
 
+	/**
+	 * The data URI of the sync adapter, shared by all operations.
+	 */
+	private static final Uri DATA_URI = Data.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
+	private static final String BY_ID = Data._ID + "=?";
+
 	private final long rawContactId;
 	private final Contact newC;
-	private final Contact existingC;
-	private final ArrayList<ContentProviderOperation> ops;
+	private final ExistingContact existingC;
+	private final ContactBatch batch;
+	private final PhotoWriter photoWriter;
 	private final Logger l;
 
-	public ContactMerger(long rawContactId, Contact newContact, Contact existingContact, ArrayList<ContentProviderOperation> ops, Logger l) {
+	public ContactMerger(long rawContactId, Contact newContact, ExistingContact existingContact, ContactBatch batch, PhotoWriter photoWriter,
+			Logger l) {
 		this.rawContactId = rawContactId;
 		this.newC = newContact;
 		this.existingC = existingContact;
-		this.ops = ops;
+		this.batch = batch;
+		this.photoWriter = photoWriter;
 		this.l = l;
 	}
 
 	public void updateName() {
-		if (TextUtils.isEmpty(existingC.getFirstName()) || TextUtils.isEmpty(existingC.getLastName())) {
+		if (existingC.getNameId() == ExistingContact.NO_ROW) {
 			l.d("Set name to: " + newC.getFirstName() + " " + newC.getLastName());
 			ContentValues cv = new ContentValues();
 			cv.put(StructuredName.GIVEN_NAME, newC.getFirstName());
 			cv.put(StructuredName.FAMILY_NAME, newC.getLastName());
 			cv.put(StructuredName.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
+			insert(cv);
 		} else if (!newC.getFirstName().equals(existingC.getFirstName()) || !newC.getLastName().equals(existingC.getLastName())) {
 			l.d("Update name to: " + newC.getFirstName() + " " + newC.getLastName());
 			ContentValues cv = new ContentValues();
 			cv.put(StructuredName.GIVEN_NAME, newC.getFirstName());
 			cv.put(StructuredName.FAMILY_NAME, newC.getLastName());
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(
-					Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?", new String[] { rawContactId + "", StructuredName.CONTENT_ITEM_TYPE })
-					.withValues(cv);
-			ops.add(updateOp.build());
+			update(existingC.getNameId(), cv);
 		}
 	}
 
-	private Builder createInsert(long rawContactId, ContentValues cv) {
-		Builder insertOp = ContentProviderOperation.newInsert(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withValues(cv);
+	private void insert(ContentValues cv) {
+		Builder insertOp = ContentProviderOperation.newInsert(DATA_URI).withValues(cv);
 		if (rawContactId == -1) {
-			insertOp.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0);
+			// The raw contact is the first operation of a new contact
+			insertOp.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, batch.getContactStart());
 		} else {
 			insertOp.withValue(Data.RAW_CONTACT_ID, rawContactId);
 		}
-		return insertOp;
+		batch.add(insertOp);
+	}
+
+	/**
+	 * Updates the values of an existing data row, or inserts a new row if there is none.
+	 */
+	private void update(long dataId, ContentValues cv) {
+		if (dataId == ExistingContact.NO_ROW) {
+			insert(cv);
+			return;
+		}
+		batch.add(ContentProviderOperation.newUpdate(DATA_URI).withSelection(BY_ID, new String[] { String.valueOf(dataId) }).withValues(cv));
 	}
 
-	private Uri addCallerIsSyncAdapterFlag(Uri uri) {
-		Uri.Builder b = uri.buildUpon();
-		b.appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true");
-		return b.build();
+	private void delete(long dataId) {
+		if (dataId != ExistingContact.NO_ROW) {
+			batch.add(ContentProviderOperation.newDelete(DATA_URI).withSelection(BY_ID, new String[] { String.valueOf(dataId) }));
+		}
 	}
 
 	public void updateMail(int mailType) {
@@ -103,29 +118,28 @@ public class ContactMerger {
 			if (existingC.getEmails() != null && existingC.getEmails().length > 0) {
 				existingMail = existingC.getEmails()[0];
 			}
+			updateMail(newMail, existingMail, mailType, existingC.getMailId());
 		}
-		updateMail(newMail, existingMail, mailType);
 	}
 
-	private void updateMail(String newMail, String existingMail, int mailType) {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Email.MIMETYPE + "=? AND " + Email.TYPE + "=?";
+	private void updateMail(String newMail, String existingMail, int mailType, long mailId) {
 		if (TextUtils.isEmpty(newMail) && !TextUtils.isEmpty(existingMail)) {
 			l.d("Delete mail data " + mailType + " (" + existingMail + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Email.CONTENT_ITEM_TYPE, mailType + "" }).build());
+			delete(mailId);
 		} else if (!TextUtils.isEmpty(newMail) && TextUtils.isEmpty(existingMail)) {
 			l.d("Add mail data " + mailType + " (" + newMail + ")");
 			ContentValues cv = new ContentValues();
 			cv.put(Email.DATA, newMail);
 			cv.put(Email.TYPE, mailType);
-			cv.put(Email.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
+			if (mailId == ExistingContact.NO_ROW) {
+				cv.put(Email.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+			}
+			update(mailId, cv);
 		} else if (!TextUtils.isEmpty(newMail) && !newMail.equals(existingMail)) {
 			l.d("Update mail data " + mailType + " (" + existingMail + " => " + newMail + ")");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Email.CONTENT_ITEM_TYPE, mailType + "" }).withValue(Email.DATA, newMail);
-			ops.add(updateOp.build());
+			ContentValues cv = new ContentValues();
+			cv.put(Email.DATA, newMail);
+			update(mailId, cv);
 		}
 	}
 
@@ -142,64 +156,60 @@ public class ContactMerger {
 			newPhone = newC.getHomePhone();
 			existingPhone = existingC.getHomePhone();
 		}
-		updatePhone(newPhone, existingPhone, phoneType);
+		updatePhone(newPhone, existingPhone, phoneType, existingC.getPhoneId(phoneType));
 	}
 
-	private void updatePhone(String newPhone, String existingPhone, int phoneType) {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Phone.MIMETYPE + "=? AND " + Phone.TYPE + "=?";
+	private void updatePhone(String newPhone, String existingPhone, int phoneType, long phoneId) {
 		if (TextUtils.isEmpty(newPhone) && !TextUtils.isEmpty(existingPhone)) {
 			l.d("Delete phone data " + phoneType + " (" + existingPhone + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Phone.CONTENT_ITEM_TYPE, phoneType + "" }).build());
+			delete(phoneId);
 		} else if (!TextUtils.isEmpty(newPhone) && TextUtils.isEmpty(existingPhone)) {
 			l.d("Add phone data " + phoneType + " (" + newPhone + ")");
 			ContentValues cv = new ContentValues();
 			cv.put(Phone.DATA, newPhone);
 			cv.put(Phone.TYPE, phoneType);
-			cv.put(Phone.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
+			if (phoneId == ExistingContact.NO_ROW) {
+				cv.put(Phone.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+			}
+			update(phoneId, cv);
 		} else if (!TextUtils.isEmpty(newPhone) && !newPhone.equals(existingPhone)) {
 			l.d("Update phone data " + phoneType + " (" + existingPhone + " => " + newPhone + ")");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Phone.CONTENT_ITEM_TYPE, phoneType + "" }).withValue(Phone.DATA, newPhone);
-			ops.add(updateOp.build());
+			ContentValues cv = new ContentValues();
+			cv.put(Phone.DATA, newPhone);
+			update(phoneId, cv);
 		}
 	}
 
+	/**
+	 * Compares the photos by the hash stored with the photo row, so the stored photo is not read. A photo row without a hash (written by an older
+	 * version) is replaced once. Changed photos are written by the {@link PhotoWriter} after the batch.
+	 */
 	public void updatePicture() {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?";
-		if (newC.getImage() == null && existingC.getImage() != null) {
-			l.d("Delete image");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Photo.CONTENT_ITEM_TYPE }).build());
-		} else if (newC.getImage() != null && existingC.getImage() == null) {
-			l.d("Add image");
-			ContentValues cv = new ContentValues();
-			cv.put(Photo.PHOTO, newC.getImage());
-			cv.put(Photo.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
-		} else if (!Arrays.equals(newC.getImage(), existingC.getImage())) {
-			l.d("Update image");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Photo.CONTENT_ITEM_TYPE }).withValue(Photo.PHOTO, newC.getImage());
-			ops.add(updateOp.build());
+		if (newC.getImage() == null) {
+			if (existingC.getPhotoId() != ExistingContact.NO_ROW) {
+				l.d("Delete image");
+				delete(existingC.getPhotoId());
+			}
+			return;
+		}
+		final String hash = PhotoCache.hash(newC.getImage());
+		if (!hash.equals(existingC.getPhotoHash())) {
+			l.d((existingC.getPhotoId() == ExistingContact.NO_ROW) ? "Add image" : "Update image");
+			photoWriter.add((rawContactId == -1) ? PhotoWriter.NEW_CONTACT : rawContactId, newC.getDn(), hash, newC.getImage(),
+					newC.getDisplayPhoto());
 		}
 	}
 
 	public void updateAddress(int adressType) {
 		if (adressType == StructuredPostal.TYPE_WORK) {
-			updateAddress(newC.getAddress(), existingC.getAddress(), adressType);
+			updateAddress(newC.getAddress(), existingC.getAddress(), adressType, existingC.getAddressId());
 		}
 	}
 
-	private void updateAddress(de.danielweisser.android.ldapsync.client.Address newAddress, Address existingAddress, int adressType) {
-		final String selection = Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=? AND " + StructuredPostal.TYPE + "=?";
+	private void updateAddress(de.danielweisser.android.ldapsync.client.Address newAddress, Address existingAddress, int adressType, long addressId) {
 		if ((newAddress == null || newAddress.isEmpty()) && existingAddress != null) {
 			l.d("Delete address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", StructuredPostal.CONTENT_ITEM_TYPE, adressType + "" }).build());
+			delete(addressId);
 		} else if (existingAddress == null && newAddress != null && !newAddress.isEmpty()) {
 			l.d("Add address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
 			ContentValues cv = new ContentValues();
@@ -210,8 +220,7 @@ public class ContactMerger {
 			cv.put(StructuredPostal.COUNTRY, newAddress.getCountry());
 			cv.put(StructuredPostal.POSTCODE, newAddress.getZip());
 			cv.put(StructuredPostal.REGION, newAddress.getState());
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
+			insert(cv);
 		} else if (newAddress != null && !newAddress.isEmpty() && !newAddress.equals(existingAddress)) {
 			l.d("Update address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
 			ContentValues cv = new ContentValues();
@@ -220,9 +229,7 @@ public class ContactMerger {
 			cv.put(StructuredPostal.COUNTRY, newAddress.getCountry());
 			cv.put(StructuredPostal.POSTCODE, newAddress.getZip());
 			cv.put(StructuredPostal.REGION, newAddress.getState());
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", StructuredPostal.CONTENT_ITEM_TYPE, adressType + "" }).withValues(cv);
-			ops.add(updateOp.build());
+			update(addressId, cv);
 		}
 	}
 }
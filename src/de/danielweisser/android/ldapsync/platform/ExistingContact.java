@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.platform;
+
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import de.danielweisser.android.ldapsync.client.Contact;
+
+/**
+ * A contact as stored on the phone, with the ids of its data rows. The rows are updated and deleted by their id.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public final class ExistingContact extends Contact {
+
+	/**
+	 * The id of a data row that does not exist.
+	 */
+	public static final long NO_ROW = -1;
+
+	private long nameId = NO_ROW;
+	private long mailId = NO_ROW;
+	private long workPhoneId = NO_ROW;
+	private long cellWorkPhoneId = NO_ROW;
+	private long homePhoneId = NO_ROW;
+	private long addressId = NO_ROW;
+	private long photoId = NO_ROW;
+	private String photoHash = null;
+
+	public long getNameId() {
+		return nameId;
+	}
+
+	public void setNameId(long nameId) {
+		this.nameId = nameId;
+	}
+
+	public long getMailId() {
+		return mailId;
+	}
+
+	public void setMailId(long mailId) {
+		this.mailId = mailId;
+	}
+
+	/**
+	 * @param phoneType
+	 *            {@link Phone#TYPE_WORK}, {@link Phone#TYPE_WORK_MOBILE} or {@link Phone#TYPE_HOME}
+	 * @return The id of the phone row of the type or {@link #NO_ROW}
+	 */
+	public long getPhoneId(int phoneType) {
+		if (phoneType == Phone.TYPE_WORK) {
+			return workPhoneId;
+		} else if (phoneType == Phone.TYPE_WORK_MOBILE) {
+			return cellWorkPhoneId;
+		} else if (phoneType == Phone.TYPE_HOME) {
+			return homePhoneId;
+		}
+		return NO_ROW;
+	}
+
+	public void setPhoneId(int phoneType, long phoneId) {
+		if (phoneType == Phone.TYPE_WORK) {
+			workPhoneId = phoneId;
+		} else if (phoneType == Phone.TYPE_WORK_MOBILE) {
+			cellWorkPhoneId = phoneId;
+		} else if (phoneType == Phone.TYPE_HOME) {
+			homePhoneId = phoneId;
+		}
+	}
+
+	public long getAddressId() {
+		return addressId;
+	}
+
+	public void setAddressId(long addressId) {
+		this.addressId = addressId;
+	}
+
+	public long getPhotoId() {
+		return photoId;
+	}
+
+	public void setPhotoId(long photoId) {
+		this.photoId = photoId;
+	}
+
+	/**
+	 * @return The hash of the stored photo ({@link de.danielweisser.android.ldapsync.client.PhotoCache#hash(byte[])}) or {@code null} if there is no
+	 *         photo or its hash is unknown
+	 */
+	public String getPhotoHash() {
+		return photoHash;
+	}
+
+	public void setPhotoHash(String photoHash) {
+		this.photoHash = photoHash;
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.platform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.util.Log;
+
+import com.unboundid.util.StaticUtils;
+
+import de.danielweisser.android.ldapsync.Constants;
+import de.danielweisser.android.ldapsync.client.PhotoCache;
+
+/**
+ * Writes the photos of the contacts outside the batches of operations, after the text fields were stored. The photos are queued in files in the
+ * private storage of the application, one file per contact, so they are not kept in memory during the sync. The queue is written at the end of the
+ * sync with a low thread priority, and the photos are streamed to the display photo of the raw contact, from the display photo in the
+ * {@link PhotoCache} or else from the queued contact photo. Photos that were not written because the sync was stopped remain in the queue and are
+ * written by the next sync.
+ * <p>
+ * Display photos are available from API level 14. On older versions the photo is stored in the photo row of the raw contact.
+ *
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+final class PhotoWriter {
+
+	private static final String TAG = "PhotoWriter";
+
+	private static final String DIRECTORY = "pending_photos";
+
+	/**
+	 * The directory of the display photo of a raw contact ({@code RawContacts.DisplayPhoto.CONTENT_DIRECTORY}).
+	 */
+	private static final String DISPLAY_PHOTO = "display_photo";
+
+	/**
+	 * The API level that introduced display photos (Ice Cream Sandwich).
+	 */
+	private static final int DISPLAY_PHOTO_API = 14;
+
+	/**
+	 * Raw contact id of a contact that is created by the current batch. The raw contact is looked up by its DN when the photo is written.
+	 */
+	static final long NEW_CONTACT = -1;
+
+	private static final Uri DATA_URI = Data.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
+	private static final String PHOTO_ROW = Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?";
+
+	private final File directory;
+	private final String accountName;
+	private final PhotoCache cache;
+
+	/**
+	 * @param context
+	 *            The context of the application
+	 * @param accountName
+	 *            The name of the account, every account has a queue of its own
+	 */
+	PhotoWriter(Context context, String accountName) {
+		this.accountName = accountName;
+		this.cache = PhotoCache.getInstance(context);
+		this.directory = new File(context.getDir(DIRECTORY, Context.MODE_PRIVATE), PhotoCache.hash(StaticUtils.getBytes(accountName)));
+		directory.mkdirs();
+	}
+
+	/**
+	 * Queues the photo of a contact. A photo of the contact that is still queued is replaced. Only the key of the display photo is queued, the
+	 * display photo itself is read from the photo cache when it is written.
+	 *
+	 * @param rawContactId
+	 *            The raw contact id or {@link #NEW_CONTACT}
+	 * @param dn
+	 *            The DN of the contact
+	 * @param hash
+	 *            The hash of the contact photo, that is stored with the photo row
+	 * @param image
+	 *            The contact photo
+	 * @param displayPhoto
+	 *            The key of the display photo in the photo cache, see {@link PhotoCache#getDisplayPhoto(String)}, or {@code null}
+	 */
+	void add(long rawContactId, String dn, String hash, byte[] image, String displayPhoto) {
+		final File file = new File(directory, PhotoCache.hash(StaticUtils.getBytes(dn)));
+		DataOutputStream out = null;
+		boolean queued = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeLong(rawContactId);
+			out.writeUTF(dn);
+			out.writeUTF(hash);
+			out.writeUTF((displayPhoto != null) ? displayPhoto : "");
+			out.writeInt(image.length);
+			out.write(image);
+			queued = true;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot queue the photo of " + dn, e);
+		} finally {
+			close(out);
+			if (!queued) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes the queued photos, including the photos left by a sync that was stopped. Must be called after the operations of the contacts were
+	 * applied. Stops if the thread is interrupted, the remaining photos are written by the next sync.
+	 *
+	 * @param provider
+	 *            The client of the contacts provider
+	 * @return The number of photos written
+	 */
+	int writeAll(ContentProviderClient provider) {
+		final File[] files = directory.listFiles();
+		if (files == null || files.length == 0) {
+			return 0;
+		}
+		final Thread thread = Thread.currentThread();
+		final int priority = thread.getPriority();
+		thread.setPriority(Thread.MIN_PRIORITY);
+		int written = 0;
+		try {
+			for (int i = 0; i < files.length; i++) {
+				if (thread.isInterrupted()) {
+					Log.i(TAG, "Sync stopped, " + (files.length - i) + " photos remain queued");
+					break;
+				}
+				final File file = files[i];
+				DataInputStream in = null;
+				boolean done = false;
+				try {
+					in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+					long rawContactId = in.readLong();
+					final String dn = in.readUTF();
+					final String hash = in.readUTF();
+					final String displayPhoto = in.readUTF();
+					final int length = in.readInt();
+					rawContactId = findRawContact(provider, rawContactId, dn);
+					if (rawContactId == NEW_CONTACT) {
+						// The contact could not be stored or was deleted
+						Log.w(TAG, "No contact for the photo of " + dn);
+						done = true;
+						continue;
+					}
+					if (write(provider, rawContactId, hash, displayPhoto, in, length)) {
+						written++;
+					} else {
+						Log.w(TAG, "Cannot open the display photo of " + dn);
+					}
+					done = true;
+				} catch (IOException e) {
+					// Written again by the next sync
+					Log.e(TAG, "Cannot write photo " + file.getName(), e);
+				} catch (SQLiteException e) {
+					Log.e(TAG, "Cannot write photo " + file.getName(), e);
+				} catch (RemoteException e) {
+					Log.e(TAG, e.getMessage(), e);
+					break;
+				} finally {
+					close(in);
+					if (done) {
+						file.delete();
+					}
+				}
+			}
+		} finally {
+			thread.setPriority(priority);
+		}
+		Log.i(TAG, written + " photos written");
+		return written;
+	}
+
+	/**
+	 * @return {@code false} if the display photo of the raw contact cannot be opened
+	 */
+	private boolean write(ContentProviderClient provider, long rawContactId, String hash, String displayPhoto, DataInputStream in, int length)
+			throws IOException, RemoteException {
+		final ContentValues cv = new ContentValues();
+		final String[] selectionArgs = new String[] { rawContactId + "", Photo.CONTENT_ITEM_TYPE };
+		if (Build.VERSION.SDK_INT >= DISPLAY_PHOTO_API) {
+			final Uri uri = Uri.withAppendedPath(ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId), DISPLAY_PHOTO);
+			final AssetFileDescriptor fd = provider.openAssetFile(uri, "rw");
+			if (fd == null) {
+				return false;
+			}
+			final OutputStream out = fd.createOutputStream();
+			try {
+				final InputStream display = openDisplayPhoto(displayPhoto);
+				if (display != null) {
+					try {
+						copy(display, out, Integer.MAX_VALUE);
+					} finally {
+						close(display);
+					}
+				} else {
+					copy(in, out, length);
+				}
+			} finally {
+				// The contacts provider stores the photo and its thumbnail when the file is closed
+				out.close();
+			}
+			cv.put(Data.SYNC1, hash);
+			provider.update(DATA_URI, cv, PHOTO_ROW, selectionArgs);
+			if (displayPhoto.length() > 0) {
+				cache.removeDisplayPhoto(displayPhoto);
+			}
+		} else {
+			final byte[] image = new byte[length];
+			in.readFully(image);
+			cv.put(Photo.PHOTO, image);
+			cv.put(Data.SYNC1, hash);
+			if (provider.update(DATA_URI, cv, PHOTO_ROW, selectionArgs) == 0) {
+				cv.put(Data.RAW_CONTACT_ID, rawContactId);
+				cv.put(Photo.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+				provider.insert(DATA_URI, cv);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The stream of the display photo in the photo cache or {@code null} if it is not in the cache (any more)
+	 */
+	private InputStream openDisplayPhoto(String displayPhoto) {
+		if (displayPhoto.length() == 0) {
+			return null;
+		}
+		final File file = cache.getDisplayPhoto(displayPhoto);
+		if (file == null) {
+			return null;
+		}
+		try {
+			return new BufferedInputStream(new FileInputStream(file));
+		} catch (IOException e) {
+			// Removed by another sync
+			return null;
+		}
+	}
+
+	/**
+	 * Copies at most {@code length} bytes, or up to the end of the stream if the length is {@link Integer#MAX_VALUE}.
+	 */
+	private static void copy(InputStream in, OutputStream out, int length) throws IOException {
+		final byte[] buffer = new byte[8192];
+		int remaining = length;
+		while (remaining > 0) {
+			final int count = in.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (count < 0) {
+				if (length == Integer.MAX_VALUE) {
+					return;
+				}
+				throw new IOException("Photo is truncated");
+			}
+			out.write(buffer, 0, count);
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Looks up the raw contact of a queued photo. A raw contact created by the batch is looked up by its DN, the raw contact of an id is checked, as
+	 * it may have been deleted since the photo was queued.
+	 *
+	 * @return The id of the raw contact or {@link #NEW_CONTACT} if the raw contact does not exist
+	 */
+	private long findRawContact(ContentProviderClient provider, long rawContactId, String dn) throws RemoteException {
+		final Cursor c;
+		if (rawContactId == NEW_CONTACT) {
+			c = provider.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID }, RawContacts.ACCOUNT_TYPE + "=? AND "
+					+ RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.SOURCE_ID + "=? AND " + RawContacts.DELETED + "=0", new String[] {
+					Constants.ACCOUNT_TYPE, accountName, dn }, null);
+		} else {
+			c = provider.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID }, RawContacts._ID + "=? AND " + RawContacts.DELETED + "=0",
+					new String[] { rawContactId + "" }, null);
+		}
+		if (c == null) {
+			return NEW_CONTACT;
+		}
+		try {
+			return c.moveToFirst() ? c.getLong(0) : NEW_CONTACT;
+		} finally {
+			c.close();
+		}
+	}
+
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+}
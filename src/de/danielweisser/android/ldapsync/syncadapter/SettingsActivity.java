@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.syncadapter;
+
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
+import android.preference.PreferenceActivity;
+import android.widget.Toast;
+import de.danielweisser.android.ldapsync.R;
+import de.danielweisser.android.ldapsync.client.PhotoCache;
+
+/**
+ * Activity with the settings that are shared by all accounts. It is opened from the settings of an account.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public class SettingsActivity extends PreferenceActivity {
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		addPreferencesFromResource(R.xml.preferences);
+		findPreference(PhotoCache.PREF_SIZE).setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+			public boolean onPreferenceChange(Preference preference, Object newValue) {
+				if (PhotoCache.parseSize(newValue.toString()) < 0) {
+					Toast.makeText(SettingsActivity.this, getString(R.string.settings_photo_cache_size_invalid, PhotoCache.MIN_SIZE_MB,
+							PhotoCache.MAX_SIZE_MB), Toast.LENGTH_LONG).show();
+					return false;
+				}
+				return true;
+			}
+		});
+	}
+}
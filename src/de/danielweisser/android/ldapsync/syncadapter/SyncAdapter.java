@@ -17,9 +17,6 @@
 package de.danielweisser.android.ldapsync.syncadapter;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -27,6 +24,7 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncResult;
 import android.os.Bundle;
@@ -34,8 +32,11 @@ import android.text.TextUtils;
 import android.util.Log;
 import de.danielweisser.android.ldapsync.Constants;
 import de.danielweisser.android.ldapsync.authenticator.LDAPAuthenticatorActivity;
+import de.danielweisser.android.ldapsync.client.AsyncContactListener;
 import de.danielweisser.android.ldapsync.client.LDAPServerInstance;
 import de.danielweisser.android.ldapsync.client.LDAPUtilities;
+import de.danielweisser.android.ldapsync.client.SSLContextCache;
+import de.danielweisser.android.ldapsync.client.ServerStatistics;
 import de.danielweisser.android.ldapsync.client.Contact;
 import de.danielweisser.android.ldapsync.platform.ContactManager;
 
@@ -50,8 +51,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 	private final AccountManager mAccountManager;
 	private final Context mContext;
 
-	private Date mLastUpdated;
-
 	public SyncAdapter(Context context, boolean autoInitialize) {
 		super(context, autoInitialize);
 		mContext = context;
@@ -65,7 +64,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 		l.startLogging();
 		l.d("Start the sync");
 		Log.d(TAG, "Start the sync.");
-		List<Contact> users = new ArrayList<Contact>();
 		String authtoken = null;
 		try {
 			// use the account manager to request the credentials
@@ -78,7 +76,19 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 			if (!TextUtils.isEmpty(sEnc)) {
 				encryption = Integer.parseInt(sEnc);
 			}
-			LDAPServerInstance ldapServer = new LDAPServerInstance(host, port, encryption, username, authtoken);
+			final String sPageSize = mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_PAGESIZE);
+			int pageSize = LDAPServerInstance.DEFAULT_PAGE_SIZE;
+			if (!TextUtils.isEmpty(sPageSize)) {
+				pageSize = Integer.parseInt(sPageSize);
+			}
+			final String sShards = mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_SHARDS);
+			int shards = 1;
+			if (!TextUtils.isEmpty(sShards)) {
+				shards = Integer.parseInt(sShards);
+			}
+			LDAPServerInstance ldapServer = new LDAPServerInstance(host, port, encryption, username, authtoken, pageSize, shards);
+			// Select the fastest server from the first attempt after a restart
+			ldapServer.loadStatistics(mAccountManager.getUserData(account, ServerStatistics.PARAM_SERVER_STATISTICS));
 
 			final String searchFilter = mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_SEARCHFILTER);
 			final String baseDN = mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_BASEDN);
@@ -92,23 +102,61 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 			mappingBundle.putString(Contact.HOMEPHONE, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.HOMEPHONE));
 			mappingBundle.putString(Contact.MAIL, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.MAIL));
 			mappingBundle.putString(Contact.PHOTO, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.PHOTO));
+			mappingBundle.putString(Contact.THUMBNAIL, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.THUMBNAIL));
 			mappingBundle.putString(Contact.STREET, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.STREET));
 			mappingBundle.putString(Contact.CITY, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.CITY));
 			mappingBundle.putString(Contact.ZIP, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.ZIP));
 			mappingBundle.putString(Contact.STATE, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.STATE));
 			mappingBundle.putString(Contact.COUNTRY, mAccountManager.getUserData(account, LDAPAuthenticatorActivity.PARAM_MAPPING + Contact.COUNTRY));
-			users = LDAPUtilities.fetchContacts(ldapServer, baseDN, searchFilter, mappingBundle, mLastUpdated, this.getContext());
-			if (users == null) {
-				syncResult.stats.numIoExceptions++;
-				return;
-			}
-			// update the last synced date.
-			mLastUpdated = new Date();
-			// update platform contacts.
+
+			// update platform contacts while the LDAP entries are streamed in
 			Log.d(TAG, "Calling contactManager's sync contacts");
 			l.d("Calling contactManager's sync contacts");
+			final SyncState syncState = SyncState.load(mAccountManager, account);
+			if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)) {
+				syncState.forceFullSync();
+			}
 			ContactManager cm = new ContactManager(l);
-			cm.syncContacts(mContext, account.name, users, syncResult);
+			cm.startSync(mContext, provider, account.name, syncResult);
+			try {
+				// The contacts are written on a thread of their own, while the search continues
+				final AsyncContactListener writer = new AsyncContactListener(cm);
+				boolean fetched = false;
+				try {
+					fetched = LDAPUtilities.fetchContacts(ldapServer, baseDN, searchFilter, mappingBundle, syncState, this.getContext(), writer);
+					if (fetched) {
+						// Contacts that were not written must not be deleted by finishSync
+						fetched = writer.finish();
+					}
+				} finally {
+					writer.close();
+				}
+				mAccountManager.setUserData(account, ServerStatistics.PARAM_SERVER_STATISTICS, ldapServer.saveStatistics());
+				// Entries that cannot be parsed are skipped, they must not make the sync fail
+				final int parseFailures = syncState.getParseFailures();
+				if (parseFailures > 0) {
+					Log.w(TAG, "Skipped " + parseFailures + " LDAP entries that could not be parsed");
+					syncResult.stats.numSkippedEntries += parseFailures;
+				}
+				if (!fetched) {
+					syncResult.stats.numIoExceptions++;
+					return;
+				}
+				// Contacts that were not returned may only be deleted if the server returned the complete set of entries
+				final boolean completeResult = syncState.isCompleteResult();
+				l.d(completeResult ? "Complete result" : "Incremental result since " + syncState.getHighWaterMark());
+				cm.finishSync(completeResult);
+				if (cm.getFailedContacts() > 0) {
+					syncState.forceNextFullSync();
+				} else if (completeResult) {
+					syncState.fullSyncFinished();
+				}
+				syncState.save(mAccountManager, account);
+			} finally {
+				// Removes the progress notification and resumes the aggregation, if the sync did not finish
+				cm.abortSync();
+			}
+			l.d("TLS handshakes: " + SSLContextCache.getResumedHandshakes() + " resumed, " + SSLContextCache.getFullHandshakes() + " full");
 			l.stopLogging();
 		} catch (final AuthenticatorException e) {
 			syncResult.stats.numParseExceptions++;
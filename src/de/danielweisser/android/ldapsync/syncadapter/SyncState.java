@@ -0,0 +1,245 @@
+/*
+ * Copyright 2010 Daniel Weisser
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.danielweisser.android.ldapsync.syncadapter;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.unboundid.util.Base64;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * The state of the synchronization of an account, that is kept between two syncs. The state is stored in the user data of the account, so it survives a
+ * restart of the sync process.
+ * 
+ * @author <a href="mailto:daniel.weisser@gmx.de">Daniel Weisser</a>
+ */
+public class SyncState {
+	private static final String TAG = "SyncState";
+
+	public static final String PARAM_HIGH_WATER_MARK = "highWaterMark";
+	public static final String PARAM_LAST_FULL_SYNC = "lastFullSync";
+	public static final String PARAM_SYNC_COOKIE = "syncCookie";
+	public static final String PARAM_DIRECTORY_STATE = "directoryState";
+
+	/**
+	 * Interval for full syncs, that detect deleted LDAP entries (24 hours).
+	 */
+	public static final long FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * The highest modifyTimestamp/createTimestamp (server clock) of all entries seen so far, in the format returned by the server.
+	 */
+	private String highWaterMark;
+	private Date highWaterMarkDate;
+
+	/**
+	 * Time of the last successful full sync (device clock).
+	 */
+	private long lastFullSync;
+
+	private boolean forceFullSync;
+
+	/**
+	 * The cookie of the last content synchronization (RFC 4533), if the server supports it.
+	 */
+	private byte[] syncCookie;
+
+	/**
+	 * Whether the last search returned the complete set of entries, so that all contacts that were not reported can be deleted.
+	 */
+	private boolean completeResult;
+
+	/**
+	 * Number of LDAP entries of the last search that could not be parsed.
+	 */
+	private int parseFailures;
+
+	/**
+	 * Server specific sync states (e.g. DirSync cookie or uSNChanged of Active Directory) by the name of the server.
+	 */
+	private final HashMap<String, String> directoryStates = new HashMap<String, String>();
+
+	/**
+	 * Loads the sync state of an account.
+	 * 
+	 * @param am
+	 *            The account manager
+	 * @param account
+	 *            The account
+	 * @return The sync state of the account
+	 */
+	public static SyncState load(AccountManager am, Account account) {
+		SyncState state = new SyncState();
+		state.updateHighWaterMark(am.getUserData(account, PARAM_HIGH_WATER_MARK));
+		final String sLastFullSync = am.getUserData(account, PARAM_LAST_FULL_SYNC);
+		if (!TextUtils.isEmpty(sLastFullSync)) {
+			try {
+				state.lastFullSync = Long.parseLong(sLastFullSync);
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid time of last full sync: " + sLastFullSync);
+			}
+		}
+		final String sSyncCookie = am.getUserData(account, PARAM_SYNC_COOKIE);
+		if (!TextUtils.isEmpty(sSyncCookie)) {
+			try {
+				state.syncCookie = Base64.decode(sSyncCookie);
+			} catch (ParseException e) {
+				Log.w(TAG, "Invalid sync cookie: " + sSyncCookie);
+			}
+		}
+		final String sDirectoryState = am.getUserData(account, PARAM_DIRECTORY_STATE);
+		if (!TextUtils.isEmpty(sDirectoryState)) {
+			for (String line : sDirectoryState.split("\n")) {
+				final int separator = line.indexOf('\t');
+				if (separator > 0) {
+					state.directoryStates.put(line.substring(0, separator), line.substring(separator + 1));
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Stores the sync state in the user data of the account. Must only be called after a successful sync.
+	 * 
+	 * @param am
+	 *            The account manager
+	 * @param account
+	 *            The account
+	 */
+	public void save(AccountManager am, Account account) {
+		am.setUserData(account, PARAM_HIGH_WATER_MARK, highWaterMark);
+		am.setUserData(account, PARAM_LAST_FULL_SYNC, lastFullSync + "");
+		am.setUserData(account, PARAM_SYNC_COOKIE, syncCookie != null ? Base64.encode(syncCookie) : null);
+		final StringBuilder sDirectoryState = new StringBuilder();
+		for (Map.Entry<String, String> e : directoryStates.entrySet()) {
+			sDirectoryState.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+		}
+		am.setUserData(account, PARAM_DIRECTORY_STATE, sDirectoryState.toString());
+	}
+
+	/**
+	 * Forces the next sync to be a full sync.
+	 */
+	public void forceFullSync() {
+		forceFullSync = true;
+	}
+
+	/**
+	 * @return {@code true} if only the entries changed since the last sync have to be retrieved, {@code false} if a full sync is necessary.
+	 */
+	public boolean isIncremental() {
+		return !forceFullSync && highWaterMark != null && System.currentTimeMillis() - lastFullSync < FULL_SYNC_INTERVAL;
+	}
+
+	/**
+	 * Forces the next sync to be a full sync, even if this sync is stored with {@link #save(AccountManager, Account)}. Used if some contacts could not be
+	 * stored, as they are not returned again by an incremental sync.
+	 */
+	public void forceNextFullSync() {
+		lastFullSync = 0;
+		syncCookie = null;
+		directoryStates.clear();
+	}
+
+	/**
+	 * Marks a full sync as successfully finished.
+	 */
+	public void fullSyncFinished() {
+		lastFullSync = System.currentTimeMillis();
+		forceFullSync = false;
+	}
+
+	/**
+	 * @return The cookie of the last content synchronization or {@code null} if the content has to be synchronized from scratch.
+	 */
+	public byte[] getSyncCookie() {
+		return forceFullSync ? null : syncCookie;
+	}
+
+	public void setSyncCookie(byte[] syncCookie) {
+		this.syncCookie = syncCookie;
+	}
+
+	/**
+	 * @param server
+	 *            The name of the server
+	 * @return The sync state of the given server or {@code null} if the content has to be synchronized from scratch.
+	 */
+	public String getDirectoryState(String server) {
+		return forceFullSync ? null : directoryStates.get(server);
+	}
+
+	public void setDirectoryState(String server, String state) {
+		directoryStates.put(server, state);
+	}
+
+	/**
+	 * @return {@code true} if the last search returned all entries, so that the contacts that were not returned can be deleted.
+	 */
+	public boolean isCompleteResult() {
+		return completeResult;
+	}
+
+	public void setCompleteResult(boolean completeResult) {
+		this.completeResult = completeResult;
+	}
+
+	/**
+	 * @return The number of LDAP entries of the last search that could not be parsed
+	 */
+	public synchronized int getParseFailures() {
+		return parseFailures;
+	}
+
+	public synchronized void addParseFailures(int count) {
+		parseFailures += count;
+	}
+
+	public String getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Raises the high-water mark, if the given timestamp is newer than the current one.
+	 * 
+	 * @param timestamp
+	 *            A modifyTimestamp or createTimestamp returned by the server in generalized time format
+	 */
+	public synchronized void updateHighWaterMark(String timestamp) {
+		if (TextUtils.isEmpty(timestamp)) {
+			return;
+		}
+		try {
+			final Date date = StaticUtils.decodeGeneralizedTime(timestamp);
+			if (highWaterMarkDate == null || date.after(highWaterMarkDate)) {
+				highWaterMarkDate = date;
+				highWaterMark = timestamp;
+			}
+		} catch (ParseException e) {
+			Log.w(TAG, "Invalid timestamp: " + timestamp);
+		}
+	}
+}